@@ -88,12 +88,16 @@ DROP TABLE IF EXISTS `tb_seckill_voucher`;
 CREATE TABLE `tb_seckill_voucher`  (
   `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '关联的优惠券的id',
   `stock` int(8) NOT NULL COMMENT '库存',
+  `user_limit` int(8) NOT NULL DEFAULT 1 COMMENT '每人限购数量',
+  `sale_mode` tinyint(1) UNSIGNED NOT NULL DEFAULT 0 COMMENT '发售方式，0：先到先得；1：抽签报名中；2：抽签已开奖',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
   `begin_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '生效时间',
   `end_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '失效时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
   PRIMARY KEY (`voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci COMMENT = '秒杀优惠券表，与优惠券是一对一关系' ROW_FORMAT = Compact;
+-- 已有的库：ALTER TABLE `tb_seckill_voucher` ADD COLUMN `user_limit` int(8) NOT NULL DEFAULT 1 COMMENT '每人限购数量' AFTER `stock`;
+-- 已有的库：ALTER TABLE `tb_seckill_voucher` ADD COLUMN `sale_mode` tinyint(1) UNSIGNED NOT NULL DEFAULT 0 COMMENT '发售方式，0：先到先得；1：抽签报名中；2：抽签已开奖' AFTER `user_limit`;
 
 -- ----------------------------
 -- Records of tb_seckill_voucher
@@ -267,6 +271,7 @@ CREATE TABLE `tb_voucher_order`  (
   `id` bigint(20) NOT NULL COMMENT '主键',
   `user_id` bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
   `voucher_id` bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+  `buy_seq` int(8) NOT NULL DEFAULT 1 COMMENT '该用户第几次购买这张券，从1开始',
   `pay_type` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
   `status` tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
   `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
@@ -274,8 +279,18 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher_seq`(`user_id`, `voucher_id`, `buy_seq`) USING BTREE COMMENT '每人限购，同一个序号只能有一单'
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+-- 已有的库，先 SHOW INDEX FROM `tb_voucher_order` WHERE Key_name = 'uk_user_voucher'; 看看加没加过一人一单的索引，两种情况二选一：
+-- 1. 没有 uk_user_voucher（最早那版建的库）：
+--   老数据里可能已经有同一个人重复下的单，buy_seq 默认都是 1，会撞上新索引，先查出来处理掉：
+--   SELECT `user_id`, `voucher_id`, COUNT(*) FROM `tb_voucher_order` GROUP BY `user_id`, `voucher_id` HAVING COUNT(*) > 1;
+--   ALTER TABLE `tb_voucher_order` ADD COLUMN `buy_seq` int(8) NOT NULL DEFAULT 1 COMMENT '该用户第几次购买这张券，从1开始' AFTER `voucher_id`,
+--     ADD UNIQUE INDEX `uk_user_voucher_seq`(`user_id`, `voucher_id`, `buy_seq`);
+-- 2. 已经有 uk_user_voucher（加过一人一单唯一索引的库）：
+--   ALTER TABLE `tb_voucher_order` ADD COLUMN `buy_seq` int(8) NOT NULL DEFAULT 1 COMMENT '该用户第几次购买这张券，从1开始' AFTER `voucher_id`,
+--     DROP INDEX `uk_user_voucher`, ADD UNIQUE INDEX `uk_user_voucher_seq`(`user_id`, `voucher_id`, `buy_seq`);
 
 -- ----------------------------
 -- Records of tb_voucher_order
@@ -0,0 +1,36 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+二级缓存（TwoLevelCache）每个区域的策略，对应配置 hmdp.cache.regions.{区域名}
+区域名就是缓存 key 前缀去掉 cache: 和结尾的冒号，比如 cache:shop: 对应 shop
+没配置的区域用下面的默认值（和原来 CaffeineConfig 里店铺缓存的参数一样）
+ */
+@Data
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheRegionProperties {
+
+    private Map<String, Region> regions = new HashMap<>();
+
+    @Data
+    public static class Region {
+        // 本地 Caffeine 写入后多久过期（秒）
+        private long localTtl = 300;
+        // 开了 Redis 客户端缓存失效通知（hmdp.cache.tracking）时本地的过期时间（秒），<= 0 表示还用 local-ttl
+        // 这时候本地过期只是兜底，可以配得很长
+        private long trackedLocalTtl = 0;
+        // 本地最多缓存多少条
+        private long localMaxSize = 1000;
+        // Redis 里的过期时间（秒），逻辑过期的区域是逻辑过期时间
+        private long redisTtl = 1800;
+        // 数据库里没有的 ID 空值缓存多久（秒），两级都按这个来，<= 0 表示不缓存空值
+        private long nullTtl = 120;
+        // Redis 那一级用逻辑过期（热点数据，过期了后台重建），只支持单个对象，不支持列表
+        private boolean logicalExpire = false;
+    }
+}
@@ -1,21 +1,13 @@
 package com.hmdp.config;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import org.springframework.context.annotation.Bean;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
-import java.util.concurrent.TimeUnit;
-
+/*
+本地缓存不再是一个全局的 Caffeine 实例，TwoLevelCache 按区域各建一个，
+大小、过期时间、空值策略都从 hmdp.cache.regions 读
+ */
 @Configuration
+@EnableConfigurationProperties(CacheRegionProperties.class)
 public class CaffeineConfig {
-    @Bean
-    public Cache<String, Object> localCache() {
-        return Caffeine.newBuilder()
-                .initialCapacity(100)
-                .maximumSize(1000)
-                // 写入后5分钟过期，防止长时间数据不一致
-                .expireAfterWrite(5, TimeUnit.MINUTES)
-                .build();
-    }
 }
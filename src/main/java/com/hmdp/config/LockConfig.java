@@ -0,0 +1,34 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.CoalescingLockFactory;
+import com.hmdp.utils.LockMetrics;
+import com.hmdp.utils.RedissonLock;
+import com.hmdp.utils.SimpleRedisLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+@Configuration
+public class LockConfig {
+
+    /*
+    分布式锁统一从这里拿，后端可以换：
+      simple    SimpleRedisLock，key 是 lock{name}（SET NX EX + unlock.lua）
+      redisson  Redisson 的 RLock，key 是 lock:{name}，可重入
+    后端锁都套了一层 LockMetrics 的统计
+     */
+    @Bean
+    public CoalescingLockFactory lockFactory(@Value("${hmdp.lock.backend:simple}") String lockBackend,
+                                             StringRedisTemplate stringRedisTemplate,
+                                             RedissonClient redissonClient,
+                                             LockMetrics lockMetrics) {
+        if ("redisson".equals(lockBackend)) {
+            return new CoalescingLockFactory(name -> lockMetrics.instrument("redisson", name,
+                    new RedissonLock(redissonClient.getLock("lock:" + name))), lockMetrics, "redisson");
+        }
+        return new CoalescingLockFactory(name -> lockMetrics.instrument("simple", name,
+                new SimpleRedisLock(stringRedisTemplate, name)), lockMetrics, "simple");
+    }
+}
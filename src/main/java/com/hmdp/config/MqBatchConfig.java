@@ -0,0 +1,41 @@
+package com.hmdp.config;
+
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MqBatchConfig {
+
+    @Value("${hmdp.seckill.consumer.batch-size:100}")
+    private int batchSize;
+    @Value("${hmdp.seckill.consumer.batch-timeout:200}")
+    private long batchTimeout;
+
+    /*
+    批量消费用的监听容器工厂，和默认的 rabbitListenerContainerFactory 并存
+    consumerBatchEnabled：容器自己攒消息，攒够 batchSize 条，或者 batchTimeout 毫秒内没有新消息，就把这一批交给监听方法
+    prefetch 至少要和 batchSize 一样大，不然 broker 一次只推 1 条，永远攒不满
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        // 先套用 application.yaml 里的配置（消息转换器等），再覆盖批量相关的部分
+        configurer.configure(factory, connectionFactory);
+        factory.setPrefetchCount(batchSize);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchTimeout);
+        // 一批消息里每条的结果可能不一样，必须手动逐条 ack/nack
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        // yaml 里的重试拦截器是按“整次调用”重试的，放在批量上会把已经成功的消息也重跑一遍，这里去掉
+        factory.setAdviceChain();
+        return factory;
+    }
+}
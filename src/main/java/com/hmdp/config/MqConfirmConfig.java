@@ -28,10 +28,13 @@ public class MqConfirmConfig implements RabbitTemplate.ConfirmCallback, RabbitTe
     //ConfirmCallback：负责确认交换机是否收到了消息
     @Override
     public void confirm(CorrelationData correlationData, boolean ack, String s) {
+        // 没带 CorrelationData 发出去的消息，这里拿到的是 null
+        String id = correlationData == null ? null : correlationData.getId();
         if (ack) {
-            log.info("全局Confirm回调成功：消息已到达交换机，ID: {}", correlationData.getId());
+            // 每条订单消息都会回调一次，成功的只打 debug；失败重发由 OrderPublisher 处理
+            log.debug("全局Confirm回调成功：消息已到达交换机，ID: {}", id);
         } else {
-            log.error("全局Confirm回调失败：消息未到达交换机，ID: {}，原因: {}", correlationData.getId(), s);
+            log.error("全局Confirm回调失败：消息未到达交换机，ID: {}，原因: {}", id, s);
         }
     }
 
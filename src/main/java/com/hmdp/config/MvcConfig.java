@@ -1,6 +1,8 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.WaitingRoomInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -13,6 +15,11 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private WaitingRoomInterceptor waitingRoomInterceptor;
+    @Value("${hmdp.seckill.waiting-room.enabled:false}")
+    private boolean waitingRoomEnabled;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor(stringRedisTemplate))
@@ -24,6 +31,12 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop-type/**",
                         "/voucher/**",
                         "/upload/**"
-                );
+                ).order(0);
+        // 排队要用到登录用户，所以排在登录拦截器后面
+        if(waitingRoomEnabled){
+            registry.addInterceptor(waitingRoomInterceptor)
+                    .addPathPatterns("/voucher-order/seckill/*", "/voucher-order/seckill/*/async")
+                    .order(1);
+        }
     }
 }
@@ -0,0 +1,24 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.LockMetrics;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+// 指标里有锁名前缀和业务量，要登录才能看（不在 MvcConfig 的免登录名单里）
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @Resource
+    private LockMetrics lockMetrics;
+
+    // 各类分布式锁的加锁次数、失败次数、本地挡掉的次数、超时仍在持有的次数，以及加锁耗时和持有时间的直方图
+    @GetMapping("/locks")
+    public Result lockMetrics() {
+        return Result.ok(lockMetrics.snapshot());
+    }
+}
@@ -46,10 +46,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        // 写入数据库，同时登记到布隆过滤器
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -2,14 +2,19 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.service.ILotteryService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * <p>
@@ -25,10 +30,42 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ILotteryService lotteryService;
 
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
 
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    // 一次买多张秒杀券，请求体是券 id 数组，全部买到或者一张都不买
+    @PostMapping("seckill/batch")
+    public Result seckillVouchers(@RequestBody List<Long> voucherIds) {
+        return voucherOrderService.seckillVouchers(voucherIds);
+    }
+
+    // 非阻塞版本：返回 CompletableFuture，等 Redis 的时候不占 Tomcat 线程
+    @PostMapping("seckill/{id}/async")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId) {
+        return voucherOrderService.seckillVoucherAsync(voucherId);
+    }
+
+    // 抽签发售的券：活动时间内报名，结束后统一开奖
+    @PostMapping("lottery/{id}")
+    public Result enterLottery(@PathVariable("id") Long voucherId) {
+        return lotteryService.enter(voucherId);
+    }
+
+    // 查询抽签结果，中签了返回订单号
+    @GetMapping("lottery/{id}")
+    public Result queryLotteryResult(@PathVariable("id") Long voucherId) {
+        return lotteryService.queryResult(voucherId);
+    }
+
+    // 秒杀接口只返回订单号，订单是异步落库的，客户端轮询这个接口看结果：0 处理中，1 成功，2 失败
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
 }
@@ -0,0 +1,18 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// 买家集合压缩的结果，内存都是 MEMORY USAGE 的字节数
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BuyerCompaction {
+    private Long voucherId;
+    // set（没压缩）、bitmap、bloom
+    private String form;
+    private Long buyers;
+    private Long bytesBefore;
+    private Long bytesAfter;
+}
@@ -0,0 +1,16 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+// 一次买多张秒杀券时发的多订单消息，同一个用户，一张券一个订单
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VoucherOrderBatch {
+    private List<VoucherOrder> orders;
+}
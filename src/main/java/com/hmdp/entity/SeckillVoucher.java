@@ -37,6 +37,16 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 每人限购数量
+     */
+    private Integer userLimit;
+
+    /**
+     * 发售方式，0：先到先得；1：抽签报名中；2：抽签已开奖
+     */
+    private Integer saleMode;
+
     /**
      * 创建时间
      */
@@ -78,6 +78,18 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 每人限购数量
+     */
+    @TableField(exist = false)
+    private Integer userLimit;
+
+    /**
+     * 发售方式，0：先到先得；1：抽签
+     */
+    @TableField(exist = false)
+    private Integer saleMode;
+
     /**
      * 生效时间
      */
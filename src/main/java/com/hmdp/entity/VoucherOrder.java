@@ -42,6 +42,11 @@ public class VoucherOrder implements Serializable {
      */
     private Long voucherId;
 
+    /**
+     * 该用户第几次购买这张券，从1开始
+     */
+    private Integer buySeq;
+
     /**
      * 支付方式 1：余额支付；2：支付宝；3：微信
      */
@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.hmdp.entity.VoucherOrder;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,8 @@ import com.hmdp.entity.VoucherOrder;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    // 以下两个都是 INSERT IGNORE，撞上唯一索引 uk_user_voucher_seq (user_id, voucher_id, buy_seq) 的订单被忽略，返回值是实际插入的行数
+    int insertIgnore(VoucherOrder order);
+
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
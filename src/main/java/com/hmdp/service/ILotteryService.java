@@ -0,0 +1,20 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * <p>
+ *  抽签发售服务类
+ * </p>
+ */
+public interface ILotteryService {
+
+    // 报名参加抽签
+    Result enter(Long voucherId);
+
+    // 查询自己的抽签结果，中签了返回订单号
+    Result queryResult(Long voucherId);
+
+    // 给报名已经截止的抽签券开奖
+    void drawFinished();
+}
@@ -1,7 +1,9 @@
 package com.hmdp.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.dto.BuyerCompaction;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
 
 /**
  * <p>
@@ -13,4 +15,12 @@ import com.hmdp.entity.SeckillVoucher;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    void preheat(SeckillVoucher seckillVoucher, Voucher voucher, boolean resetStock);
+
+    void preheatUpcoming();
+
+    // 活动还没结束 compact.grace-minutes 分钟（或者没预热过）的券不压缩，返回 null
+    BuyerCompaction compactBuyers(Long voucherId);
+
+    void compactFinished();
 }
@@ -13,6 +13,7 @@ import com.hmdp.entity.Shop;
  * @since 2021-12-22
  */
 public interface IShopService extends IService<Shop> {
+    Result saveShop(Shop shop);
     Result update(Shop shop);
     Result queryById(Long id);
 }
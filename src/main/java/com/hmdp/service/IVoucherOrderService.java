@@ -4,6 +4,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +19,18 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId);
+
+    Result seckillVouchers(List<Long> voucherIds);
+
+    // 返回订单是否真正创建成功（重复下单、库存不足返回 false）
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    // 返回真正落库的订单ID，被唯一索引挡掉的重复订单不在里面
+    List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    // 抽签开奖一次性落库，这张券已经开过奖时返回 false
+    boolean createLotteryOrders(Long voucherId, List<VoucherOrder> voucherOrders);
+
+    Result queryOrderStatus(Long orderId);
 }
@@ -9,12 +9,12 @@ import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.TwoLevelCache;
 import com.hmdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
@@ -28,6 +28,7 @@ import java.util.Set;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
 import static com.hmdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -47,6 +48,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private TwoLevelCache twoLevelCache;
 
     // 首页展示的热门博客
     @Override
@@ -68,10 +71,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     // 点击查询首页的博客
     @Override
     public Result queryBlogById(Long id) {
-        Blog blog = getById(id);
-        if(blog == null){
+        Blog cached = twoLevelCache.get(CACHE_BLOG_KEY, id, Blog.class, this::getById);
+        if(cached == null){
             return Result.fail("笔记不存在！");
         }
+        // 缓存里的对象是共用的，下面要填作者和点赞状态，先拷贝一份
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         queryBlogUser(blog);
         //查询是否被点过赞
         isBlogLiked(blog);
@@ -107,12 +112,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             if(isSuccess){
                 //相当于按照发布时间作为排序的分数
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
+                //点赞数变了
+                twoLevelCache.evict(CACHE_BLOG_KEY, id);
             }
         }else{
             boolean isSuccess =
                     update().setSql("liked = liked - 1").eq("id",id).update();
             if(isSuccess){
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+                twoLevelCache.evict(CACHE_BLOG_KEY, id);
             }
         }
         return Result.ok();
@@ -159,6 +167,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(!isSuccess){
             return Result.fail("新增笔记失败！");
         }
+        // 之前有人查过这个 ID 的话缓存里会有空值，清掉
+        twoLevelCache.evict(CACHE_BLOG_KEY, blog.getId());
         // 查询该笔记发布者的所有粉丝
         List<Follow> follows = followService.lambdaQuery().eq(Follow::getFollowUserId, user.getId()).list();
         // 推送
@@ -223,7 +233,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     // 博客详情页上显示的用户，单独拉出来成一个方法
     private void queryBlogUser(Blog blog){
         Long userId = blog.getUserId();
-        User user = userService.getById(userId);
+        //热门列表一页十条，每条都要查作者，走二级缓存
+        UserDTO user = userService.queryUserDTO(userId);
+        if(user == null){
+            return;
+        }
         blog.setName(user.getNickName());
         blog.setIcon(user.getIcon());
     }
@@ -0,0 +1,231 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ILotteryService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.IIdWorker;
+import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.SystemConstants.SALE_MODE_LOTTERY;
+import static com.hmdp.utils.SystemConstants.SALE_MODE_LOTTERY_DRAWN;
+
+/*
+抽签发售：报名人数是库存几十倍的活动，先到先得只会变成一波纯粹的流量尖峰，而且抢到谁全看网速
+改成两段：
+  报名：活动时间（begin ~ end）内用户只是报个名，lottery_enter.lua 一次 SETBIT 记进位图，不碰库存，没有热点行也没有热点 key 的争抢
+  开奖：报名截止后定时任务读出整张位图，在 Java 里随机抽出不超过库存数的中签者，
+       数据库里一条 UPDATE 扣掉全部库存、多行 INSERT 批量写订单，一个事务
+这样写库的压力从活动开始那一秒的尖峰变成了一个可以安排时间跑的批处理
+开奖结果写进 seckill:lottery:result:{voucherId}（userId -> orderId），用户自己来查
+ */
+@Slf4j
+@Service
+public class LotteryServiceImpl implements ILotteryService {
+
+    private static final DefaultRedisScript<Long> ENTER_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        ENTER_SCRIPT = new DefaultRedisScript<>();
+        ENTER_SCRIPT.setLocation(new ClassPathResource("lottery_enter.lua"));
+        ENTER_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+    // lottery_enter.lua 返回值对应的提示，0 是成功
+    private static final String[] ENTER_FAIL_MESSAGES = {
+            null, null, "您已经报过名了！", "抽签报名尚未开始！", "抽签报名已经结束！",
+            "优惠券不存在或已下架！", null, "该优惠券不是抽签发售！"
+    };
+    // 开奖结果一次 HSET 写多少个中签者
+    private static final int RESULT_CHUNK = 1000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private IIdWorker idWorker;
+    // 开奖锁的值，释放时确认锁还是自己的
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Random random = new SecureRandom();
+
+    @Override
+    public Result enter(Long voucherId) {
+        Long userId = UserHolder.getUser().getId();
+        int result = stringRedisTemplate.execute(ENTER_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), userId.toString()).intValue();
+        if (result != 0) {
+            return Result.fail(ENTER_FAIL_MESSAGES[result]);
+        }
+        return Result.ok();
+    }
+
+    @Override
+    public Result queryResult(Long voucherId) {
+        Long userId = UserHolder.getUser().getId();
+        Boolean entered = stringRedisTemplate.opsForValue().getBit(SECKILL_LOTTERY_KEY + voucherId, userId);
+        if (!Boolean.TRUE.equals(entered)) {
+            return Result.fail("您没有报名这次抽签！");
+        }
+        if (!stringRedisTemplate.opsForHash().hasKey(SECKILL_VOUCHER_KEY + voucherId, "drawn")) {
+            return Result.fail("已报名，等待开奖！");
+        }
+        Object orderId = stringRedisTemplate.opsForHash().get(SECKILL_LOTTERY_RESULT_KEY + voucherId, userId.toString());
+        if (orderId == null) {
+            return Result.fail("很遗憾，没有中签！");
+        }
+        return Result.ok(Long.valueOf(orderId.toString()));
+    }
+
+    /*
+    每分钟看一次报名已经截止的抽签券
+      sale_mode = 1 的还没开奖，不管截止了多久都要开（节点停机一天以上也不会漏掉）
+      sale_mode = 2 的是数据库里已经开过奖、但结果还没写进 Redis 的（比如写结果之前进程挂了），从订单表里把结果补回去；
+        结果只保留 SECKILL_LOTTERY_RESULT_TTL 天，更早的不用再补
+    报名是否截止由 lottery_enter.lua 按 Redis 的 TIME 判断，这里也用 Redis 的时间，不用本机时钟，
+    再多等 LOTTERY_DRAW_DELAY 秒，防止节点之间、Redis 主从之间的时间差让截止前最后的报名没被抽到
+     */
+    @Override
+    @Scheduled(fixedDelay = 60000)
+    public void drawFinished() {
+        Long redisMillis = stringRedisTemplate.execute(
+                (RedisCallback<Long>) connection -> connection.serverCommands().time(TimeUnit.MILLISECONDS));
+        if (redisMillis == null) {
+            return;
+        }
+        LocalDateTime now = LocalDateTime.ofInstant(Instant.ofEpochMilli(redisMillis), ZoneId.systemDefault());
+        LocalDateTime deadline = now.minusSeconds(LOTTERY_DRAW_DELAY);
+        LocalDateTime publishFrom = now.minusDays(SECKILL_LOTTERY_RESULT_TTL);
+        List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                .le("end_time", deadline)
+                .and(w -> w.eq("sale_mode", SALE_MODE_LOTTERY)
+                        .or(d -> d.eq("sale_mode", SALE_MODE_LOTTERY_DRAWN).gt("end_time", publishFrom)))
+                .list();
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            try {
+                draw(seckillVoucher);
+            } catch (Exception e) {
+                log.error("抽签开奖失败，voucherId：{}", seckillVoucher.getVoucherId(), e);
+            }
+        }
+    }
+
+    private void draw(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        if (stringRedisTemplate.opsForHash().hasKey(SECKILL_VOUCHER_KEY + voucherId, "drawn")) {
+            return;
+        }
+        // 每个节点都会跑定时任务，先抢锁，只让一个节点去读名单；真正防止重复开奖的是数据库里的 sale_mode
+        String lockKey = LOCK_LOTTERY_DRAW_KEY + voucherId;
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                .setIfAbsent(lockKey, instanceId, LOCK_LOTTERY_DRAW_TTL, TimeUnit.SECONDS))) {
+            return;
+        }
+        try {
+            if (seckillVoucher.getSaleMode() == SALE_MODE_LOTTERY_DRAWN) {
+                publishResults(voucherId, loadWinners(voucherId));
+                return;
+            }
+            long[] entrants = loadEntrants(voucherId);
+            int winners = Math.min(seckillVoucher.getStock(), entrants.length);
+            // 洗牌只洗前 winners 个位置（Fisher-Yates），每个报名的人中签的概率都一样
+            for (int i = 0; i < winners; i++) {
+                int j = i + random.nextInt(entrants.length - i);
+                long tmp = entrants[i];
+                entrants[i] = entrants[j];
+                entrants[j] = tmp;
+            }
+            long[] orderIds = winners == 0 ? new long[0] : idWorker.nextIds("order", winners);
+            List<VoucherOrder> orders = new ArrayList<>(winners);
+            for (int i = 0; i < winners; i++) {
+                VoucherOrder voucherOrder = new VoucherOrder();
+                voucherOrder.setId(orderIds[i]);
+                voucherOrder.setUserId(entrants[i]);
+                voucherOrder.setVoucherId(voucherId);
+                voucherOrder.setBuySeq(1);
+                orders.add(voucherOrder);
+            }
+            if (!voucherOrderService.createLotteryOrders(voucherId, orders)) {
+                // 锁过期以后别的节点已经开过奖了，以数据库里的为准
+                log.warn("抽签券已经开过奖了，voucherId：{}", voucherId);
+                orders = loadWinners(voucherId);
+            }
+            publishResults(voucherId, orders);
+            log.info("抽签开奖完成，voucherId：{}，报名人数：{}，中签人数：{}", voucherId, entrants.length, orders.size());
+        } finally {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), instanceId);
+        }
+    }
+
+    // 一次 GET 把整张报名位图读回来，第 n 位是 1 表示 userId = n 报了名（Redis 位图的第 0 位是第一个字节的最高位）
+    private long[] loadEntrants(Long voucherId) {
+        byte[] bitmap = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands()
+                .get((SECKILL_LOTTERY_KEY + voucherId).getBytes(StandardCharsets.UTF_8)));
+        if (bitmap == null) {
+            return new long[0];
+        }
+        int count = 0;
+        for (byte b : bitmap) {
+            count += Integer.bitCount(b & 0xff);
+        }
+        long[] entrants = new long[count];
+        int n = 0;
+        for (int i = 0; i < bitmap.length; i++) {
+            int b = bitmap[i] & 0xff;
+            for (int bit = 0; bit < 8 && b != 0; bit++) {
+                if ((b & (0x80 >>> bit)) != 0) {
+                    entrants[n++] = (long) i * 8 + bit;
+                }
+            }
+        }
+        return entrants;
+    }
+
+    private List<VoucherOrder> loadWinners(Long voucherId) {
+        return voucherOrderService.query().select("id", "user_id").eq("voucher_id", voucherId).list();
+    }
+
+    // 先写结果再打 drawn 标记，用户看到“已开奖”时结果一定已经在了
+    private void publishResults(Long voucherId, List<VoucherOrder> orders) {
+        String resultKey = SECKILL_LOTTERY_RESULT_KEY + voucherId;
+        for (int i = 0; i < orders.size(); i += RESULT_CHUNK) {
+            Map<String, String> chunk = new HashMap<>(RESULT_CHUNK * 2);
+            for (VoucherOrder voucherOrder : orders.subList(i, Math.min(orders.size(), i + RESULT_CHUNK))) {
+                chunk.put(voucherOrder.getUserId().toString(), voucherOrder.getId().toString());
+            }
+            stringRedisTemplate.opsForHash().putAll(resultKey, chunk);
+        }
+        stringRedisTemplate.expire(resultKey, SECKILL_LOTTERY_RESULT_TTL, TimeUnit.DAYS);
+        stringRedisTemplate.expire(SECKILL_LOTTERY_KEY + voucherId, SECKILL_LOTTERY_RESULT_TTL, TimeUnit.DAYS);
+        stringRedisTemplate.opsForHash().put(SECKILL_VOUCHER_KEY + voucherId, "drawn", String.valueOf(orders.size()));
+    }
+}
@@ -1,11 +1,37 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.crypto.digest.DigestUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.BuyerCompaction;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.SeckillRouter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +40,333 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    // 这里直接用 mapper，用 IVoucherService 会和 VoucherServiceImpl 互相依赖
+    @Resource
+    private VoucherMapper voucherMapper;
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+    @Value("${hmdp.seckill.preheat-lead-minutes:10}")
+    private long preheatLeadMinutes;
+    @Value("${hmdp.seckill.compact.grace-minutes:60}")
+    private long compactGraceMinutes;
+    @Value("${hmdp.seckill.compact.bloom-fpp:0.001}")
+    private double bloomFpp;
+    @Value("${hmdp.seckill.shop-daily-limit:0}")
+    private int shopDailyLimit;
+
+    /*
+    秒杀券预热：把 lua 脚本需要的东西都提前放进 Redis，抢购时脚本自己就能判断，不用再查数据库
+      seckill:voucher:{voucherId}  hash，begin/end（毫秒时间戳）、status（1 上架）、shards（库存分片数）
+                                   另外可以手动加 admitRate，单独指定这张券排队放行的速率，预热不会覆盖它
+                                   活动结束后压缩买家集合时会写 buyers/bloomBits/bloomHashes，预热同样不会覆盖
+                                   limit（每人限购）、shopId、shopDailyLimit（同一家店每人每天最多抢几张，0 不限）
+                                   mode（发售方式，1 抽签，seckill.lua 直接拒绝，只能走 lottery_enter.lua 报名）
+      seckill:stock:{voucherId}    库存
+    分片的券（shards > 1）每个分片带 hash tag {voucherId:i}（见 SeckillRouter）：
+      seckill:voucher:{voucherId:i} 上面这份预热信息的副本，seckill.lua 只读自己分片的副本，不跨槽
+      seckill:stock:{voucherId:i}   这个分片的库存
+    resetStock：新建券时直接覆盖库存；定时预热时库存只在不存在时才写，已经在卖的券 Redis 里的库存才是准的
+    限购多张的券买家记录用计数哈希（buyers=counter），新建券时就定下来，之后不能再改，否则已经买过的人会被清零
+     */
+    @Override
+    public void preheat(SeckillVoucher seckillVoucher, Voucher voucher, boolean resetStock) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        String metaKey = SECKILL_VOUCHER_KEY + voucherId;
+
+        // 已经预热过的券沿用原来的分片数，配置改了也只影响新券
+        int shards = stockShards;
+        if (!resetStock) {
+            Object existed = stringRedisTemplate.opsForHash().get(metaKey, "shards");
+            if (existed != null) {
+                shards = Integer.parseInt(existed.toString());
+            }
+        }
+
+        saveSeckillStock(voucherId, seckillVoucher.getStock(), Math.max(shards, 1), resetStock);
+
+        int userLimit = seckillVoucher.getUserLimit() == null ? 1 : Math.max(seckillVoucher.getUserLimit(), 1);
+        Map<String, String> meta = new HashMap<>(8);
+        meta.put("begin", String.valueOf(toMillis(seckillVoucher.getBeginTime())));
+        meta.put("end", String.valueOf(toMillis(seckillVoucher.getEndTime())));
+        // status 没填的时候数据库默认是 1（上架）
+        meta.put("status", String.valueOf(voucher.getStatus() == null ? 1 : voucher.getStatus()));
+        meta.put("shards", String.valueOf(Math.max(shards, 1)));
+        meta.put("shopId", String.valueOf(voucher.getShopId()));
+        meta.put("shopDailyLimit", String.valueOf(Math.max(shopDailyLimit, 0)));
+        meta.put("mode", String.valueOf(seckillVoucher.getSaleMode() == null ? 0 : seckillVoucher.getSaleMode()));
+        List<String> metaKeys = new ArrayList<>(shards + 1);
+        metaKeys.add(metaKey);
+        if (shards > 1) {
+            for (int i = 0; i < shards; i++) {
+                metaKeys.add(SeckillRouter.shardMetaKey(voucherId, i));
+            }
+        }
+        if (resetStock) {
+            meta.put("limit", String.valueOf(userLimit));
+            if (userLimit > 1) {
+                meta.put("buyers", "counter");
+            } else {
+                metaKeys.forEach(key -> stringRedisTemplate.opsForHash().delete(key, "buyers"));
+            }
+        }
+        metaKeys.forEach(key -> stringRedisTemplate.opsForHash().putAll(key, meta));
+        if (!resetStock) {
+            /*
+            limit 和买家记录的形式是绑在一起的，开卖以后不能跟着数据库改（改大了集合形式的买家记录不会计数，改小了已经买过的人超限）
+            定时预热只在这张券第一次预热（还没有 limit）时写
+             */
+            for (String key : metaKeys) {
+                Boolean first = stringRedisTemplate.opsForHash().putIfAbsent(key, "limit", String.valueOf(userLimit));
+                if (Boolean.TRUE.equals(first) && userLimit > 1) {
+                    stringRedisTemplate.opsForHash().put(key, "buyers", "counter");
+                }
+            }
+        }
+    }
+
+    /*
+    定时预热：开始前 preheat-lead-minutes 分钟内、还没结束的秒杀券
+    启动时会立刻跑一次，进程启动前就已经建好的券也能被预热
+    每次都会刷新时间和上下架状态，后台改了数据库，最多一分钟后脚本就能看到
+     */
+    @Override
+    @Scheduled(fixedDelay = 60000)
+    public void preheatUpcoming() {
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> seckillVouchers = query()
+                .le("begin_time", now.plusMinutes(preheatLeadMinutes))
+                .gt("end_time", now)
+                .list();
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        Map<Long, Voucher> vouchers = voucherMapper.selectBatchIds(
+                        seckillVouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList()))
+                .stream().collect(Collectors.toMap(Voucher::getId, Function.identity()));
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            Voucher voucher = vouchers.get(seckillVoucher.getVoucherId());
+            if (voucher == null) {
+                continue;
+            }
+            try {
+                preheat(seckillVoucher, voucher, false);
+            } catch (Exception e) {
+                log.error("秒杀券预热失败，voucherId：{}", seckillVoucher.getVoucherId(), e);
+            }
+        }
+    }
+
+    /*
+    活动结束后压缩买家集合
+    seckill:order:{voucherId} 是用户 ID 字符串组成的 Set，一直留在 Redis 里，买家多了以后是最占内存的 key
+    活动结束 compact.grace-minutes 分钟后（消息队列里的订单早就处理完了），把它换成更紧凑的形式：
+      用户 ID 比较密集时用位图 seckill:order:{voucherId}:bits，第 userId 位是 1 表示买过，完全准确
+      用户 ID 很稀疏、位图比布隆过滤器还大时，用布隆过滤器 seckill:order:{voucherId}:bloom，误判率 compact.bloom-fpp
+      两种都不比原来的 Set 小（比如只有几个买家，Set 本身就是 intset）时保持原样
+    压缩以后 meta 里的 buyers 字段记下形式，seckill.lua 按它去查，压缩前后的券脚本都认识
+    分片的券每个分片的买家记录单独压缩，形式记在分片自己的副本里；
+    不分片的 key 也压一遍（租约模式的买家记在这里），压完写主 meta 的 buyers，表示整张券压缩完了
+    布隆过滤器的误判只会让极少数没买过的人被当成买过，而且只发生在活动结束以后，可以接受
+     */
+    @Override
+    @Scheduled(fixedDelay = 600000)
+    public void compactFinished() {
+        ScanOptions options = ScanOptions.scanOptions().match(SECKILL_VOUCHER_KEY + "*").count(100).build();
+        try (Cursor<String> cursor = stringRedisTemplate.scan(options)) {
+            while (cursor.hasNext()) {
+                String metaKey = cursor.next();
+                // 分片的副本 seckill:voucher:{voucherId:i} 跟着主 meta 一起压缩
+                if (metaKey.indexOf('{') >= 0) {
+                    continue;
+                }
+                // 已经压缩过（或者正在压缩）的跳过，有没有结束由 compactBuyers 判断
+                if (stringRedisTemplate.opsForHash().hasKey(metaKey, "buyers")) {
+                    continue;
+                }
+                Long voucherId = Long.valueOf(metaKey.substring(SECKILL_VOUCHER_KEY.length()));
+                try {
+                    compactBuyers(voucherId);
+                } catch (Exception e) {
+                    log.error("压缩买家集合失败，voucherId：{}", voucherId, e);
+                }
+            }
+        }
+    }
+
+    /*
+    还在卖（或者刚结束、消息队列里还有订单）的券不能压缩：压缩期间和压缩以后 seckill.lua 按新形式查买家，
+    这时候还有人下单的话，写进 Set 的买家会被漏掉，同一个人就能再买一次
+    所以这里自己判断活动结束了 compact.grace-minutes 分钟，没到的返回 null，不依赖调用方
+     */
+    @Override
+    public BuyerCompaction compactBuyers(Long voucherId) {
+        String metaKey = SECKILL_VOUCHER_KEY + voucherId;
+        String orderKey = SECKILL_ORDER_KEY + voucherId;
+        Object end = stringRedisTemplate.opsForHash().get(metaKey, "end");
+        long deadline = System.currentTimeMillis() - compactGraceMinutes * 60000;
+        if (end == null || Long.parseLong(end.toString()) > deadline) {
+            return null;
+        }
+        // 每个节点都会跑定时任务，先占个坑，只让一个节点压缩
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForHash().putIfAbsent(metaKey, "buyers", "compacting"))) {
+            Object form = stringRedisTemplate.opsForHash().get(metaKey, "buyers");
+            return new BuyerCompaction(voucherId, String.valueOf(form), null, null, null);
+        }
+        try {
+            Object shardsValue = stringRedisTemplate.opsForHash().get(metaKey, "shards");
+            int shards = shardsValue == null ? 1 : Integer.parseInt(shardsValue.toString());
+            List<BuyerCompaction> results = new ArrayList<>(shards + 1);
+            for (int i = 0; shards > 1 && i < shards; i++) {
+                results.add(doCompactBuyers(voucherId,
+                        SeckillRouter.shardMetaKey(voucherId, i), SeckillRouter.shardOrderKey(voucherId, i)));
+            }
+            // 主 meta 最后写，写完 buyers 就不再是 compacting
+            results.add(doCompactBuyers(voucherId, metaKey, orderKey));
+            return results.size() == 1 ? results.get(0) : merge(voucherId, results);
+        } catch (RuntimeException e) {
+            // 失败了把占的坑让出来，下次再试；脚本不认识 compacting，会按原来的 Set 处理
+            stringRedisTemplate.opsForHash().delete(metaKey, "buyers");
+            throw e;
+        }
+    }
+
+    private BuyerCompaction doCompactBuyers(Long voucherId, String metaKey, String orderKey) {
+        Long bytesBefore = memoryUsage(orderKey);
+        long[] userIds = scanBuyers(orderKey);
+        int buyers = userIds.length;
+        if (bytesBefore == null || buyers == 0) {
+            stringRedisTemplate.opsForHash().put(metaKey, "buyers", "set");
+            return new BuyerCompaction(voucherId, "set", 0L, bytesBefore, bytesBefore);
+        }
+
+        long maxUserId = Arrays.stream(userIds).max().getAsLong();
+        // 布隆过滤器：m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long bloomBits = Math.max(64, (long) Math.ceil(-buyers * Math.log(bloomFpp) / (Math.log(2) * Math.log(2))));
+        int bloomHashes = Math.max(1, (int) Math.round((double) bloomBits / buyers * Math.log(2)));
+        // SETBIT 的偏移量最大是 2^32 - 1
+        boolean useBitmap = maxUserId < (1L << 32) && maxUserId + 1 <= bloomBits;
+        long expectedBytes = useBitmap ? maxUserId / 8 + 1 : bloomBits / 8 + 1;
+        if (expectedBytes >= bytesBefore) {
+            stringRedisTemplate.opsForHash().put(metaKey, "buyers", "set");
+            log.info("买家集合已经足够小，不压缩，voucherId：{}，买家数：{}，内存：{}字节", voucherId, buyers, bytesBefore);
+            return new BuyerCompaction(voucherId, "set", (long) buyers, bytesBefore, bytesBefore);
+        }
+
+        // 位图在本地拼好，一条 SET 写进去，不用一个买家一条 SETBIT
+        String form = useBitmap ? "bitmap" : "bloom";
+        String compactKey = orderKey + (useBitmap ? ":bits" : ":bloom");
+        byte[] bits = new byte[(int) expectedBytes];
+        for (long userId : userIds) {
+            if (useBitmap) {
+                setBit(bits, userId);
+            } else {
+                for (long position : bloomPositions(userId, bloomBits, bloomHashes)) {
+                    setBit(bits, position);
+                }
+            }
+        }
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(compactKey.getBytes(StandardCharsets.UTF_8), bits));
+
+        // 先切换形式再删 Set，脚本任何时候都能查到完整的买家信息
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("buyers", form);
+        if (!useBitmap) {
+            meta.put("bloomBits", String.valueOf(bloomBits));
+            meta.put("bloomHashes", String.valueOf(bloomHashes));
+        }
+        stringRedisTemplate.opsForHash().putAll(metaKey, meta);
+        stringRedisTemplate.unlink(orderKey);
+
+        Long bytesAfter = memoryUsage(compactKey);
+        log.info("买家集合压缩完成，voucherId：{}，形式：{}，买家数：{}，内存：{}字节 -> {}字节",
+                voucherId, form, buyers, bytesBefore, bytesAfter);
+        return new BuyerCompaction(voucherId, form, (long) buyers, bytesBefore, bytesAfter);
+    }
+
+    private BuyerCompaction merge(Long voucherId, List<BuyerCompaction> results) {
+        String forms = results.stream().map(BuyerCompaction::getForm).distinct().collect(Collectors.joining(","));
+        long buyers = 0;
+        long before = 0;
+        long after = 0;
+        for (BuyerCompaction r : results) {
+            buyers += r.getBuyers() == null ? 0 : r.getBuyers();
+            before += r.getBytesBefore() == null ? 0 : r.getBytesBefore();
+            after += r.getBytesAfter() == null ? 0 : r.getBytesAfter();
+        }
+        return new BuyerCompaction(voucherId, forms, buyers, before, after);
+    }
+
+    private long[] scanBuyers(String orderKey) {
+        long[] userIds = new long[1024];
+        int size = 0;
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(orderKey, ScanOptions.scanOptions().count(1000).build())) {
+            while (cursor.hasNext()) {
+                if (size == userIds.length) {
+                    userIds = Arrays.copyOf(userIds, size * 2);
+                }
+                userIds[size++] = Long.parseLong(cursor.next());
+            }
+        }
+        return Arrays.copyOf(userIds, size);
+    }
+
+    // 和 seckill.lua 里的 bloomPositions 一模一样：sha1(userId) 的前两段 32 位做双重哈希
+    static long[] bloomPositions(long userId, long bloomBits, int bloomHashes) {
+        String hash = DigestUtil.sha1Hex(String.valueOf(userId));
+        long h1 = Long.parseLong(hash.substring(0, 8), 16);
+        long h2 = Long.parseLong(hash.substring(8, 16), 16);
+        long[] positions = new long[bloomHashes];
+        for (int i = 0; i < bloomHashes; i++) {
+            positions[i] = (h1 + i * h2) % bloomBits;
+        }
+        return positions;
+    }
+
+    // Redis 位图的第 0 位是第一个字节的最高位
+    private static void setBit(byte[] bits, long offset) {
+        bits[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+    }
+
+    private Long memoryUsage(String key) {
+        return stringRedisTemplate.execute((RedisCallback<Long>) connection -> (Long) connection.execute("MEMORY",
+                "USAGE".getBytes(StandardCharsets.UTF_8), key.getBytes(StandardCharsets.UTF_8),
+                "SAMPLES".getBytes(StandardCharsets.UTF_8), "0".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /*
+    热门券的库存如果只放在一个 key 上，所有抢购都挤在这一个 key 上
+    开了分片以后，库存平均拆到 seckill:stock:{voucherId:i} 这 K 个子 key 上，除不尽的余数从第 0 片开始各多分 1 个
+    用户 ID 按分片数取模决定落在哪个分片，各分片卖得差不多一样快
+     */
+    private void saveSeckillStock(Long voucherId, Integer stock, int shards, boolean reset) {
+        String stockKey = SECKILL_STOCK_KEY + voucherId;
+        Map<String, String> stocks = new HashMap<>(shards);
+        if (shards <= 1) {
+            stocks.put(stockKey, stock.toString());
+        } else {
+            for (int i = 0; i < shards; i++) {
+                int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+                stocks.put(SeckillRouter.shardStockKey(voucherId, i), String.valueOf(shardStock));
+            }
+        }
+        if (reset) {
+            // 库存重新写了，之前的售罄标记作废
+            stringRedisTemplate.delete(SECKILL_SOLD_OUT_KEY + voucherId);
+            stringRedisTemplate.opsForValue().multiSet(stocks);
+        } else {
+            stringRedisTemplate.opsForValue().multiSetIfAbsent(stocks);
+        }
+    }
+
+    private long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
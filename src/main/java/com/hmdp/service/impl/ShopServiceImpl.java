@@ -1,28 +1,20 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.github.benmanes.caffeine.cache.Cache;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.CacheClient;
-import org.springframework.amqp.core.ExchangeTypes;
-import org.springframework.amqp.rabbit.annotation.Exchange;
-import org.springframework.amqp.rabbit.annotation.Queue;
-import org.springframework.amqp.rabbit.annotation.QueueBinding;
-import org.springframework.amqp.rabbit.annotation.RabbitListener;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.BloomFilterGuard;
+import com.hmdp.utils.TwoLevelCache;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
-import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -38,13 +30,33 @@ import static com.hmdp.utils.RedisConstants.*;
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
     @Resource
-    private Cache<String, Object> localCache; // Caffeine
+    private TwoLevelCache twoLevelCache;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
-    @Resource
-    private CacheClient cacheClient;
-    @Resource
-    private RabbitTemplate rabbitTemplate;
+    private BloomFilterGuard bloomFilterGuard;
+
+    // 店铺 ID 的布隆过滤器，保护 cache:shop:，定时从 tb_shop 按主键分页重建
+    @PostConstruct
+    public void registerBloomFilter() {
+        bloomFilterGuard.register(CACHE_SHOP_KEY, "shop", this::idsAfter);
+    }
+
+    private List<Long> idsAfter(long afterId, int limit) {
+        return query().select("id").gt("id", afterId).orderByAsc("id").last("limit " + limit).list()
+                .stream().map(Shop::getId).collect(Collectors.toList());
+    }
+
+    @Override
+    @Transactional
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 新店铺登记到布隆过滤器，不然在下次重建之前都会被当成不存在
+        bloomFilterGuard.add(CACHE_SHOP_KEY, shop.getId());
+        // 之前有人查过这个 ID 的话缓存里会有空值，清掉
+        twoLevelCache.evict(CACHE_SHOP_KEY, shop.getId());
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
 
     @Override
     @Transactional
@@ -62,52 +74,24 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("店铺ID不能为空");
         }
         // 更新数据库
-        updateById(shop);
-        // 删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
-        // 发广播消息清空所有节点的 Caffeine
-        rabbitTemplate.convertAndSend(
-                "clearMessage.fanout",
-                "",
-                CACHE_SHOP_KEY + shop.getId().toString()
-        );
+        if(updateById(shop)){
+            // 一般来说更新的店铺已经在布隆过滤器里了，补登一次防止它是上次重建之后才插入、又没走 saveShop 的
+            bloomFilterGuard.add(CACHE_SHOP_KEY, shop.getId());
+        }
+        // 删除 Redis 缓存，并广播清空所有节点的 Caffeine
+        twoLevelCache.evict(CACHE_SHOP_KEY, shop.getId());
 
         return Result.ok();
     }
 
     @Override
     public Result queryById(Long id) {
-        String key = CACHE_SHOP_KEY + id;
-
-        // 查一级缓存 (Caffeine)
-        Shop shop = (Shop) localCache.getIfPresent(key);
-        if (shop != null) {
-            return Result.ok(shop);
-        }
-
-        //防止缓存穿透和缓存击穿
-        shop = cacheClient
-               .queryWithPassThough
-                        (CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
-
+        //先查 Caffeine，再查 Redis；Redis 用逻辑过期（shop 区域配了 logical-expire），过期了后台重建，读的人直接拿旧数据
+        Shop shop = twoLevelCache.get(CACHE_SHOP_KEY, id, Shop.class, this::getById);
         if(shop == null){
             return Result.fail("店铺不存在！");
-        }else{
-            //回填到 Caffeine（空值不要回填）
-            localCache.put(key, shop);
         }
         return Result.ok(shop);
     }
 
-    // 生产者进程处理1000个用户的请求，然后把信息发送到交换机里，再路由到另外几个进程的队列中
-    // 另外的进程拿到这1000个用户的请求后交由相关线程开始处理；
-    // 或者是一台服务器，一个进程内，某个线程把消息广播，由不同的线程处理
-    @RabbitListener(bindings = @QueueBinding(
-            value = @Queue(name = "clearMessage.queue"),
-            exchange = @Exchange(name = "clearMessage.fanout", type = ExchangeTypes.FANOUT)
-    ))
-    public void clearLocalShopCache(String key){
-        localCache.invalidate(key);
-    }
-
 }
@@ -1,13 +1,11 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.TwoLevelCache;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
@@ -15,7 +13,6 @@ import javax.annotation.Resource;
 import java.util.List;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOPTYPE_KEY;
-import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
 
 /**
  * <p>
@@ -29,26 +26,17 @@ import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private TwoLevelCache twoLevelCache;
 
     @Override
     public Result queryByType() {
 
-        //从redis查询商铺类型缓存
-        String shopTypeJson = stringRedisTemplate.opsForValue().get(CACHE_SHOPTYPE_KEY);
-        if(StrUtil.isNotBlank(shopTypeJson)){
-            List<ShopType> shopType = JSONUtil.toList(shopTypeJson, ShopType.class);
-            return Result.ok(shopType);
-        }
-
-        //没找到直接去数据库里面找
-        List<ShopType> shopType = query().orderByAsc("sort").list();
+        //先查本地，再查redis，都没有再去数据库里面找；类型列表只有一份，key 是 cache:shop-type:list
+        List<ShopType> shopType = twoLevelCache.getList(CACHE_SHOPTYPE_KEY, "list", ShopType.class,
+                ignored -> query().orderByAsc("sort").list());
         if(shopType == null || shopType.isEmpty()){
             return Result.fail("未查询到店铺");
         }
-
-        //写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOPTYPE_KEY, JSONUtil.toJsonStr(shopType));
         return Result.ok(shopType);
     }
 }
@@ -11,6 +11,7 @@ import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.TwoLevelCache;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -40,6 +41,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private TwoLevelCache twoLevelCache;
 
     @Override
     //以手机号和验证码为键值对放到redis
@@ -107,11 +110,22 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    // 别人主页、笔记作者都要查这个，缓存的是 UserDTO，手机号、密码这些不进缓存
+    @Override
+    public UserDTO queryUserDTO(Long id) {
+        return twoLevelCache.get(CACHE_USER_KEY, id, UserDTO.class, userId -> {
+            User user = getById(userId);
+            return user == null ? null : BeanUtil.copyProperties(user, UserDTO.class);
+        });
+    }
+
     private User createUserByPhone(String phone) {
         User user = new User();
         user.setPhone(phone);
         user.setNickName(USER_NICK_NAME_PREFIX + RandomUtil.randomString(8));
         save(user);
+        // 之前有人查过这个 ID 的话缓存里会有空值，清掉
+        twoLevelCache.evict(CACHE_USER_KEY, user.getId());
 
         return user;
     }
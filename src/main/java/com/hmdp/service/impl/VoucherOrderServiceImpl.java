@@ -1,36 +1,86 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.VoucherOrderBatch;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
-import com.hmdp.utils.RedisIdWorker;
-import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.CoalescingLockFactory;
+import com.hmdp.utils.IIdWorker;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.OrderPublisher;
+import com.hmdp.utils.OrderStatusTable;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillRouter;
+import com.hmdp.utils.SoldOutGate;
+import com.hmdp.utils.StockLeaseManager;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
+import com.rabbitmq.client.Channel;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.api.async.RedisStreamAsyncCommands;
+import io.lettuce.core.models.stream.ClaimedMessages;
 import org.springframework.amqp.core.ExchangeTypes;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.*;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_DLQ_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+import static com.hmdp.utils.SystemConstants.SALE_MODE_LOTTERY;
+import static com.hmdp.utils.SystemConstants.SALE_MODE_LOTTERY_DRAWN;
 
 /**
  * <p>
@@ -47,13 +97,37 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IIdWorker idWorker;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private RedissonClient redissonClient;
-    @Resource
     private RabbitTemplate rabbitTemplate;
+    @Resource
+    private MessageConverter messageConverter;
+    @Resource
+    private StockLeaseManager stockLeaseManager;
+    @Resource
+    private SoldOutGate soldOutGate;
+    @Resource
+    private OrderStatusTable orderStatusTable;
+    @Resource
+    private OrderPublisher orderPublisher;
+    @Resource
+    private ReactiveStringRedisTemplate reactiveStringRedisTemplate;
+    @Resource
+    private CoalescingLockFactory lockFactory;
+    @Resource
+    private SeckillRouter seckillRouter;
+    @Value("${hmdp.seckill.async.threads:4}")
+    private int asyncThreads;
+    // 异步秒杀的回调线程池，脚本结果回来以后在这里组装订单、发消息
+    private ExecutorService seckillCallbackExecutor;
+    @Value("#{'${hmdp.seckill.order-channel:rabbit}' == 'stream'}")
+    private boolean useStream;
+    @Value("${hmdp.seckill.consumer.batch-size:100}")
+    private int streamBatchSize;
+    @Value("${hmdp.seckill.waiting-room.enabled:false}")
+    private boolean waitingRoomEnabled;
     private IVoucherOrderService proxy;
 
     //同步秒杀思路
@@ -84,11 +158,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         这代表无论两个请求是来自同一台服务器还是不同服务器
         最终都会去 Redis 尝试对同一个 Key "order:100" 执行 SET NX（set if not exists）操作
          */
-        SimpleRedisLock redisLock = new SimpleRedisLock(stringRedisTemplate, "order:" + userID);
-
-        //redisson的自动锁
-        //RLock redissonLock = redissonClient.getLock("lock:order:" + userID);
-        //boolean redissonIsLock = redissonLock.tryLock();
+        //同一个节点上的重复点击先在本地挡掉，只有本地抢赢的请求才去 Redis，后端是 SimpleRedisLock 还是 redisson 看 hmdp.lock.backend
+        ILock redisLock = lockFactory.getLock("order:" + userID);
 
         //这里有两个锁，一个乐观锁一个悲观锁实现出票功能
         //悲观锁同时也是分布式锁，只锁相同用户
@@ -116,7 +187,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
              */
 
             Long userId = UserHolder.getUser().getId();
-            Long orderId = redisIdWorker.nextId("order");
+            Long orderId = idWorker.nextId("order");
             VoucherOrder voucherOrder = new VoucherOrder();
             voucherOrder.setId(orderId);
             voucherOrder.setUserId(userId);
@@ -138,55 +209,364 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     //异步秒杀思路
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 本节点已经知道卖完了，连 Redis 都不用碰
+        if(soldOutGate.isSoldOut(voucherId)){
+            return Result.fail("优惠券库存不足！");
+        }
+        Long userId = UserHolder.getUser().getId();
+        Long orderId = idWorker.nextId("order");
+
+        List<Long> result;
+        if(stockLeaseManager.isEnabled()){
+            // 租约模式：库存从本节点租到的那一批里扣，不用每单都跑一次 lua
+            result = stockLeaseManager.tryAcquire(voucherId, userId, orderId, today());
+        }else{
+            SeckillRouter.Route route = seckillRouter.route(voucherId);
+            result = route.isSharded()
+                    ? reserveSharded(voucherId, userId, orderId, route)
+                    : stringRedisTemplate.execute(
+                            SECKILL_SCRIPT,
+                            seckillKeys(voucherId, userId, orderId, route),
+                            seckillArgs(voucherId, userId, orderId)
+                    );
+        }
+        Result r = afterSeckill(result, voucherId, userId, orderId);
+
+        //获取代理对象
+        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        return r;
+    }
+
+    /*
+    非阻塞版本：Tomcat 线程跑到 lua 脚本这里就把请求挂起（异步 Servlet）还回线程池，
+    脚本用 Lettuce 的异步连接发出去（ReactiveStringRedisTemplate），结果回来以后在 seckillCallbackExecutor 上做剩下的事，
+    订单消息本来就是 OrderPublisher 异步发的，所以整个过程没有线程在干等网络
+    少量线程就能撑住大量同时在途的抢购请求
+    生成订单号在号段/雪花模式下基本是纯内存操作，直接在请求线程里做
+     */
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId) {
+        if(soldOutGate.isSoldOut(voucherId)){
+            return CompletableFuture.completedFuture(Result.fail("优惠券库存不足！"));
+        }
+        // UserHolder 是 ThreadLocal，回调线程上拿不到，先取出来
         Long userId = UserHolder.getUser().getId();
-        Long orderId = redisIdWorker.nextId("order");
+        Long orderId = idWorker.nextId("order");
+
+        CompletableFuture<List<Long>> reserved;
+        SeckillRouter.Route route = stockLeaseManager.isEnabled() ? null : seckillRouter.route(voucherId);
+        if(route == null){
+            // 租约模式只有一次限购脚本，没有对应的异步实现，放到回调线程池里做，一样不占 Tomcat 线程
+            String today = today();
+            reserved = CompletableFuture.supplyAsync(
+                    () -> stockLeaseManager.tryAcquire(voucherId, userId, orderId, today), seckillCallbackExecutor);
+        }else if(route.isSharded()){
+            // 分片的券可能要跑好几步（兄弟分片、店铺每日限购），同样放到回调线程池里
+            reserved = CompletableFuture.supplyAsync(
+                    () -> reserveSharded(voucherId, userId, orderId, route), seckillCallbackExecutor);
+        }else{
+            // Lettuce 的响应式 eval 会把脚本返回的数组拆成一个个元素发出来，这里再收回成 {code, seq}
+            reserved = reactiveStringRedisTemplate.execute(
+                            SECKILL_SCRIPT,
+                            seckillKeys(voucherId, userId, orderId, route),
+                            Arrays.asList(seckillArgs(voucherId, userId, orderId)))
+                    .map(Object.class::cast)
+                    .collectList()
+                    .map(values -> values.stream().map(v -> ((Number) v).longValue()).collect(Collectors.toList()))
+                    .toFuture();
+        }
+        // 不能在 Lettuce 的 IO 线程上继续往下做，发消息在极端情况下会退回同步发送
+        return reserved
+                .thenApplyAsync(result -> afterSeckill(result, voucherId, userId, orderId), seckillCallbackExecutor)
+                .exceptionally(e -> {
+                    log.error("异步秒杀失败，voucherId：{}，userId：{}", voucherId, userId, e);
+                    return Result.fail("服务器异常");
+                });
+    }
 
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
+    /*
+    一次买多张秒杀券（同一家店的几张券一起抢）
+    以前每张券是一次 HTTP、一次 lua、一次 INCR、一条消息；现在：
+      订单号一次分配好（idWorker.nextIds）
+      seckill_batch.lua 一次调用检查并扣减所有券，要么全扣要么全不扣
+      所有订单放进一条多订单消息，消费者一个事务批量落库
+    开了库存租约（hmdp.seckill.lease.enabled）就不能用：
+      租约模式下库存在各节点本地的租约里，Redis 里的共享库存只是还没租出去的部分，
+      seckill_batch.lua 直接扣共享库存会绕过 StockLeaseManager，两边对不上
+    开了排队（hmdp.seckill.waiting-room.enabled）也不能用：
+      排队是按券领号放行的，WaitingRoomInterceptor 只认路径里的 {id}，这个接口的券 ID 在请求体里，
+      放着不管就成了绕开限速的后门；一车券逐张领号的话，前面放行的号会被后面没轮到的券白白作废
+     */
+    @Override
+    public Result seckillVouchers(List<Long> voucherIds) {
+        if(stockLeaseManager.isEnabled() || waitingRoomEnabled){
+            return Result.fail("当前不支持一次购买多张优惠券，请逐张购买！");
+        }
+        // 去重，同一张券在一次请求里只能买一张
+        List<Long> ids = voucherIds == null ? Collections.emptyList()
+                : voucherIds.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if(ids.isEmpty()){
+            return Result.fail("请选择要购买的优惠券！");
+        }
+        if(ids.size() > MAX_BATCH_VOUCHERS){
+            return Result.fail("一次最多购买" + MAX_BATCH_VOUCHERS + "张优惠券！");
+        }
+        for(Long voucherId : ids){
+            if(soldOutGate.isSoldOut(voucherId)){
+                return Result.fail("优惠券" + voucherId + "：优惠券库存不足！");
+            }
+        }
+        Long userId = UserHolder.getUser().getId();
+        long[] orderIds = idWorker.nextIds("order", ids.size());
+
+        List<String> args = new ArrayList<>(5 + ids.size() * 2);
+        args.add(userId.toString());
+        args.add(String.valueOf(ThreadLocalRandom.current().nextInt(1024)));
+        args.add(String.valueOf(OrderStatusTable.ttlSeconds()));
+        args.add(useStream ? STREAM_ORDERS_KEY : "");
+        args.add(today());
+        for(int i = 0; i < ids.size(); i++){
+            args.add(ids.get(i).toString());
+            args.add(String.valueOf(orderIds[i]));
+        }
+        List<Long> result = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, Collections.emptyList(), args.toArray());
+        int code = result.get(0).intValue();
+        if(code != 0){
+            Long failed = ids.get(result.get(1).intValue());
+            if(code == 1){
+                soldOutGate.markSoldOut(failed);
+            }
+            return Result.fail("优惠券" + failed + "：" + SECKILL_FAIL_MESSAGES[code]);
+        }
+
+        List<VoucherOrder> orders = new ArrayList<>(ids.size());
+        for(int i = 0; i < ids.size(); i++){
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(orderIds[i]);
+            voucherOrder.setUserId(userId);
+            voucherOrder.setVoucherId(ids.get(i));
+            // 成功时脚本在 {0, -1} 后面按顺序带回每张券的购买序号
+            voucherOrder.setBuySeq(result.get(i + 2).intValue());
+            orders.add(voucherOrder);
+        }
+        List<Long> orderIdList = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        // stream 模式下脚本已经逐条 XADD 了（stream 消费者本来就是批量落库的）
+        if(useStream){
+            return Result.ok(orderIdList);
+        }
+        try {
+            orderPublisher.publish(new VoucherOrderBatch(orders));
+        } catch (Exception e) {
+            log.error("消息发送失败，订单ID：{}", orderIdList, e);
+            return Result.fail("创建订单失败，请重试");
+        }
+        return Result.ok(orderIdList);
+    }
+
+    // 不分片的券，key 的顺序见 seckill.lua
+    private List<String> seckillKeys(Long voucherId, Long userId, Long orderId, SeckillRouter.Route route) {
+        List<String> keys = new ArrayList<>(9);
+        keys.add(SECKILL_VOUCHER_KEY + voucherId);
+        keys.add(SECKILL_STOCK_KEY + voucherId);
+        keys.add(SECKILL_ORDER_KEY + voucherId);
+        keys.addAll(SeckillRouter.buyerKeys(SECKILL_ORDER_KEY + voucherId, userId));
+        keys.add(SeckillRouter.shopDailyKey(route.shopId, today()));
+        keys.add(ORDER_STATUS_KEY + orderId);
+        // Stream 模式下脚本扣完库存直接 XADD 订单消息，不传就不写
+        if(useStream){
+            keys.add(STREAM_ORDERS_KEY);
+        }
+        return keys;
+    }
+
+    private Object[] seckillArgs(Long voucherId, Long userId, Long orderId) {
+        return new Object[]{
                 voucherId.toString(),
-                userId.toString()
-        );
-        if(result.intValue() != 0){
-            return Result.fail(result.intValue() == 1? "优惠券库存不足！":"该优惠券每个用户只能购买一张！");
+                userId.toString(),
+                orderId.toString(),
+                String.valueOf(OrderStatusTable.ttlSeconds())
+        };
+    }
+
+    /*
+    分片的券：seckill.lua 只在用户自己的分片（SeckillRouter.homeShard）上跑，传进去的 3 个 key 带同一个 hash tag
+    自己的分片空了，脚本返回 8（买家已经记上了），再随机从一个兄弟分片开始挨个拿一张，都拿不到就撤销买家记录、写售罄标记
+    各分片卖得差不多快，只有快卖完时剩得不均匀才会走到这一步，平时每单还是一次脚本
+    店铺每日限购的 key 跨券共享，不在分片的槽里，拿到库存以后单独查，超了就把库存和买家记录还回去
+    订单状态、stream 也不在分片的槽里，最后单独写：
+      写失败就把这一单拿到的库存、买家记录、店铺每日限购次数都还回去，用户可以重试
+      节点正好在扣完库存、还没写进 stream 的时候挂了，这一单就丢了，库存和买家记录留在 Redis 里，
+      只会少卖不会超卖（和 RabbitMQ 模式下消息没发出去是一样的）；要完全原子就只能不分片
+     */
+    private List<Long> reserveSharded(Long voucherId, Long userId, Long orderId, SeckillRouter.Route route) {
+        int home = SeckillRouter.homeShard(userId, route.shards);
+        String orderKey = SeckillRouter.shardOrderKey(voucherId, home);
+        List<String> keys = new ArrayList<>(6);
+        keys.add(SeckillRouter.shardMetaKey(voucherId, home));
+        keys.add(SeckillRouter.shardStockKey(voucherId, home));
+        keys.add(orderKey);
+        keys.addAll(SeckillRouter.buyerKeys(orderKey, userId));
+        List<Long> result = stringRedisTemplate.execute(
+                SECKILL_SCRIPT, keys, voucherId.toString(), userId.toString(), "", "");
+        int code = result.get(0).intValue();
+        if(code != 0 && code != SECKILL_SHARD_EMPTY){
+            return result;
+        }
+        int taken = home;
+        if(code == SECKILL_SHARD_EMPTY){
+            taken = takeFromSibling(voucherId, home, route.shards);
+            if(taken < 0){
+                undoShardBuyer(voucherId, userId, home);
+                // 所有分片都空了，租约模式和批量下单还会看这个汇总标记
+                stringRedisTemplate.opsForValue().set(SECKILL_SOLD_OUT_KEY + voucherId, "1");
+                return Arrays.asList(1L, 0L);
+            }
+        }
+        if(route.shopDailyLimit > 0){
+            Long quota = stringRedisTemplate.execute(
+                    SHOP_DAILY_SCRIPT,
+                    Collections.singletonList(SeckillRouter.shopDailyKey(route.shopId, today())),
+                    userId.toString(), String.valueOf(route.shopDailyLimit));
+            if(quota != null && quota != 0){
+                releaseShard(voucherId, userId, home, taken, null);
+                return Arrays.asList(quota, 0L);
+            }
+        }
+
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        voucherOrder.setBuySeq(result.get(1).intValue());
+        try {
+            orderStatusTable.markPending(orderId);
+            if(useStream){
+                stringRedisTemplate.opsForStream().add(STREAM_ORDERS_KEY, toStreamFields(voucherOrder));
+            }
+        } catch (RuntimeException e) {
+            log.error("分片秒杀写入订单失败，归还库存，订单ID：{}", orderId, e);
+            releaseShard(voucherId, userId, home, taken, route.shopDailyLimit > 0 ? route : null);
+            throw e;
+        }
+        return Arrays.asList(0L, result.get(1));
+    }
+
+    // 把一单拿到的库存、买家记录还回去；shopCounted 不为空时店铺每日限购的次数也减回去
+    private void releaseShard(Long voucherId, Long userId, int home, int taken, SeckillRouter.Route shopCounted) {
+        try {
+            stringRedisTemplate.opsForValue().increment(SeckillRouter.shardStockKey(voucherId, taken));
+            undoShardBuyer(voucherId, userId, home);
+            if(shopCounted != null){
+                stringRedisTemplate.opsForHash().increment(
+                        SeckillRouter.shopDailyKey(shopCounted.shopId, today()), userId.toString(), -1);
+            }
+        } catch (RuntimeException e) {
+            // 还不回去只会少卖，不影响正确性
+            log.error("归还分片库存失败，voucherId：{}，userId：{}", voucherId, userId, e);
+        }
+    }
+
+    // 返回拿到库存的分片，-1 表示兄弟分片也都空了
+    private int takeFromSibling(Long voucherId, int home, int shards) {
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        for(int i = 0; i < shards; i++){
+            int shard = (start + i) % shards;
+            if(shard == home){
+                continue;
+            }
+            Long taken = stringRedisTemplate.execute(
+                    SHARD_TAKE_SCRIPT, Collections.singletonList(SeckillRouter.shardStockKey(voucherId, shard)));
+            if(taken != null && taken == 1){
+                return shard;
+            }
+        }
+        return -1;
+    }
+
+    private void undoShardBuyer(Long voucherId, Long userId, int home) {
+        String orderKey = SeckillRouter.shardOrderKey(voucherId, home);
+        List<String> buyerKeys = SeckillRouter.buyerKeys(orderKey, userId);
+        stringRedisTemplate.execute(SHARD_UNDO_SCRIPT,
+                Arrays.asList(SeckillRouter.shardMetaKey(voucherId, home), orderKey, buyerKeys.get(0), buyerKeys.get(1)),
+                userId.toString());
+    }
+
+    // 店铺每日限购按天分 key，日期用本节点的时区算，和下单时间的口径一致
+    private static String today() {
+        return LocalDate.now().format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    // 扣完库存（lua 脚本或者租约）以后的处理，同步和异步两个版本共用；reserved 是 {code, seq}
+    private Result afterSeckill(List<Long> reserved, Long voucherId, Long userId, Long orderId) {
+        int result = reserved.get(0).intValue();
+        if(result == 1 && !stockLeaseManager.isEnabled()){
+            // 第一次发现卖完，记下来并广播给其他节点
+            // 租约模式下不能这么做：本节点租不到了，别的节点手里可能还有没卖完的库存
+            soldOutGate.markSoldOut(voucherId);
+        }
+        if(result != 0){
+            return Result.fail(SECKILL_FAIL_MESSAGES[result]);
         }
 
         VoucherOrder voucherOrder = new VoucherOrder();
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
+        voucherOrder.setBuySeq(reserved.get(1).intValue());
 
         // 放入阻塞队列
         // orderTasks.add(voucherOrder);
 
+        if(useStream){
+            // 订单状态和 stream 在扣库存那一步已经写好了：seckill.lua / 租约模式的 seckill_quota.lua 里原子地写，
+            // 分片的券在 reserveSharded 里写
+            return Result.ok(orderId);
+        }
+
         // 放入消息队列RabbitMQ
-        // 序列化订单对象，发送到交换机
+        // 交给 OrderPublisher 异步批量发送，带 CorrelationData，nack 了它会在后台重发，请求线程不等 broker
         try {
-            // 放入消息队列RabbitMQ
-            rabbitTemplate.convertAndSend(
-                    "seckillOrder.direct",
-                    "seckillOrder",
-                    voucherOrder
-            );
-            log.info("消息发送成功，订单ID：{}", orderId); // 新增日志
+            orderPublisher.publish(voucherOrder);
         } catch (Exception e) {
             log.error("消息发送失败，订单ID：{}", orderId, e); // 捕获发送异常
             return Result.fail("创建订单失败，请重试"); // 告知前端失败
         }
-
-        //获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
         return Result.ok(orderId);
     }
 
 
+    //lua脚本（以及租约模式）返回值对应的提示，0 是成功
+    private static final String[] SECKILL_FAIL_MESSAGES = {
+            null, "优惠券库存不足！", "已达到该优惠券的限购数量！",
+            "秒杀尚未开始！", "秒杀已经结束！", "优惠券不存在或已下架！", "已达到本店今日限购数量！",
+            "该优惠券为抽签发售，请先报名参加抽签！"
+    };
+
     //执行lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List<Long>> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<List<Long>> SECKILL_BATCH_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_UNDO_SCRIPT;
+    private static final DefaultRedisScript<Long> SHOP_DAILY_SCRIPT;
     static{
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT = RedisScripts.longListScript("seckill.lua");
+        SECKILL_BATCH_SCRIPT = RedisScripts.longListScript("seckill_batch.lua");
+        SHARD_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SHARD_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_take.lua"));
+        SHARD_TAKE_SCRIPT.setResultType(Long.class);
+        SHARD_UNDO_SCRIPT = new DefaultRedisScript<>();
+        SHARD_UNDO_SCRIPT.setLocation(new ClassPathResource("seckill_shard_undo.lua"));
+        SHARD_UNDO_SCRIPT.setResultType(Long.class);
+        SHOP_DAILY_SCRIPT = new DefaultRedisScript<>();
+        SHOP_DAILY_SCRIPT.setLocation(new ClassPathResource("seckill_shop_daily.lua"));
+        SHOP_DAILY_SCRIPT.setResultType(Long.class);
     }
+    // seckill.lua 分片模式下的返回码：本分片没库存了，买家已经记上，要去兄弟分片拿
+    private static final int SECKILL_SHARD_EMPTY = 8;
+    // 一次最多买几张券，lua 脚本是原子执行的，一次锁住 Redis 的时间不能太长
+    private static final int MAX_BATCH_VOUCHERS = 10;
+    // 抽签开奖时一条多行 INSERT 最多写多少单
+    private static final int LOTTERY_INSERT_CHUNK = 1000;
 
 
     // 阻塞队列思路
@@ -222,6 +602,170 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
 
 
+    // Redis Stream 消息队列
+    /*
+    和上面阻塞队列的思路一样，还是一个单独的线程在后台消费，只是队列换成了 Redis 的 stream.orders
+    好处是 seckill.lua 扣库存和 XADD 在同一个脚本里原子完成，不存在“库存扣了消息没发出去”的情况
+    消费组 g1，每个节点一个消费者，一次 XREADGROUP 读一批，整批走批量落库，失败了再逐条处理
+    读到了但没 XACK 的消息留在 pending list 里，定期用 XAUTOCLAIM 把空闲太久的（消费者挂了）认领过来重新处理
+    逐条处理还失败的消息转存到 stream.orders.dlq 并 XACK，不让它一直卡在 pending list 里
+     */
+    private static final String STREAM_GROUP = "g1";
+    // pending 消息空闲超过这个时间才认为原来的消费者处理不了了
+    private static final Duration STREAM_CLAIM_MIN_IDLE = Duration.ofSeconds(30);
+    private static final long STREAM_CLAIM_INTERVAL_MILLIS = 5000L;
+    private final String streamConsumer = "c-" + UUID.randomUUID().toString().substring(0, 8);
+    private ExecutorService streamOrderExecutor;
+
+    // 后台线程不是通过代理对象调进来的，拿不到 AopContext，这里注入一个自己的代理用来开事务
+    @Lazy
+    @Resource
+    private IVoucherOrderService self;
+
+    @PostConstruct
+    private void initSeckillCallbackExecutor(){
+        seckillCallbackExecutor = Executors.newFixedThreadPool(asyncThreads, r -> new Thread(r, "seckill-callback"));
+    }
+
+    @PostConstruct
+    private void initStreamConsumer(){
+        if(!useStream){
+            return;
+        }
+        // 消费组不存在就连同 stream 一起建出来，已经存在会报 BUSYGROUP，忽略即可
+        try{
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8), STREAM_GROUP,
+                            ReadOffset.from("0"), true));
+        }catch (Exception e){
+            log.debug("消费组已存在：{}", e.getMessage());
+        }
+        streamOrderExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "stream-order-handler"));
+        streamOrderExecutor.submit(new StreamOrderHandler());
+    }
+
+    @PreDestroy
+    private void stopSeckillCallbackExecutor(){
+        seckillCallbackExecutor.shutdown();
+    }
+
+    @PreDestroy
+    private void stopStreamConsumer(){
+        if(streamOrderExecutor != null){
+            streamOrderExecutor.shutdownNow();
+        }
+    }
+
+    private class StreamOrderHandler implements Runnable{
+        @Override
+        public void run() {
+            long lastClaim = 0;
+            while(!Thread.currentThread().isInterrupted()){
+                try{
+                    // 隔一段时间先把别的消费者卡住的消息认领过来
+                    if(System.currentTimeMillis() - lastClaim > STREAM_CLAIM_INTERVAL_MILLIS){
+                        lastClaim = System.currentTimeMillis();
+                        handleStreamRecords(claimPendingRecords());
+                    }
+                    handleStreamRecords(readNewRecords());
+                }catch (Exception e){
+                    if(Thread.currentThread().isInterrupted()){
+                        return;
+                    }
+                    log.error("处理stream订单异常", e);
+                }
+            }
+        }
+    }
+
+    /*
+    XREADGROUP GROUP g1 c COUNT n BLOCK 2000 STREAMS stream.orders >
+    read 只有 StreamOffset<K>... 这一个变长参数的版本，传泛型对象会有创建泛型数组的警告；
+    这里只传一个 StreamOffset<String>，方法里也只读不写这个数组，不会有堆污染
+     */
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> readNewRecords(){
+        return stringRedisTemplate.opsForStream().read(
+                Consumer.from(STREAM_GROUP, streamConsumer),
+                StreamReadOptions.empty().count(streamBatchSize).block(Duration.ofSeconds(2)),
+                StreamOffset.create(STREAM_ORDERS_KEY, ReadOffset.lastConsumed())
+        );
+    }
+
+    private List<MapRecord<String, Object, Object>> claimPendingRecords(){
+        // Spring Data Redis 2.7 没有封装 XAUTOCLAIM，直接用 Lettuce 的原生命令
+        ClaimedMessages<byte[], byte[]> claimed = stringRedisTemplate.execute(
+                (RedisCallback<ClaimedMessages<byte[], byte[]>>) connection -> {
+                    @SuppressWarnings("unchecked")
+                    RedisStreamAsyncCommands<byte[], byte[]> commands =
+                            (RedisStreamAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+                    XAutoClaimArgs<byte[]> args = new XAutoClaimArgs<byte[]>()
+                            .consumer(io.lettuce.core.Consumer.from(
+                                    STREAM_GROUP.getBytes(StandardCharsets.UTF_8),
+                                    streamConsumer.getBytes(StandardCharsets.UTF_8)))
+                            .minIdleTime(STREAM_CLAIM_MIN_IDLE)
+                            .startId("0-0")
+                            .count(streamBatchSize);
+                    return LettuceFutures.awaitOrCancel(
+                            commands.xautoclaim(STREAM_ORDERS_KEY.getBytes(StandardCharsets.UTF_8), args),
+                            10, TimeUnit.SECONDS);
+                });
+        if(claimed == null || claimed.getMessages().isEmpty()){
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, Object, Object>> records = new ArrayList<>(claimed.getMessages().size());
+        for(StreamMessage<byte[], byte[]> message : claimed.getMessages()){
+            if(message.getBody() == null){
+                continue;
+            }
+            Map<Object, Object> body = new HashMap<>();
+            message.getBody().forEach((k, v) -> body.put(
+                    new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            records.add(StreamRecords.newRecord().in(STREAM_ORDERS_KEY).withId(message.getId()).ofMap(body));
+        }
+        log.info("认领了{}条pending订单消息", records.size());
+        return records;
+    }
+
+    private void handleStreamRecords(List<MapRecord<String, Object, Object>> records){
+        if(records == null || records.isEmpty()){
+            return;
+        }
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        for(MapRecord<String, Object, Object> record : records){
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+        }
+        try{
+            List<Long> created = self.createVoucherOrders(voucherOrders);
+            stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_GROUP,
+                    records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+            updateOrderStatus(voucherOrders, created);
+        }catch (Exception e){
+            log.error("批量创建stream订单失败，退回逐条处理，本批数量：{}", records.size(), e);
+            for(int i = 0; i < records.size(); i++){
+                MapRecord<String, Object, Object> record = records.get(i);
+                try{
+                    updateOrderStatus(voucherOrders.get(i).getId(), self.createVoucherOrder(voucherOrders.get(i)));
+                }catch (Exception ex){
+                    log.error("订单处理失败，转入死信stream，订单ID：{}", voucherOrders.get(i).getId(), ex);
+                    stringRedisTemplate.opsForStream().add(STREAM_ORDERS_DLQ_KEY, record.getValue());
+                    orderStatusTable.markFailed(voucherOrders.get(i).getId());
+                }
+                stringRedisTemplate.opsForStream().acknowledge(STREAM_ORDERS_KEY, STREAM_GROUP, record.getId());
+            }
+        }
+    }
+
+    private Map<String, String> toStreamFields(VoucherOrder voucherOrder){
+        Map<String, String> fields = new HashMap<>(4);
+        fields.put("id", voucherOrder.getId().toString());
+        fields.put("userId", voucherOrder.getUserId().toString());
+        fields.put("voucherId", voucherOrder.getVoucherId().toString());
+        fields.put("buySeq", voucherOrder.getBuySeq().toString());
+        return fields;
+    }
+
+
     // RabbitMQ 消息队列
     @RabbitListener(bindings = @QueueBinding(
             value = @Queue(
@@ -233,7 +777,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             ),
             exchange = @Exchange(name = "seckillOrder.direct", type = ExchangeTypes.DIRECT),
             key = {"seckillOrder"}
-    ))
+    ), concurrency = "${hmdp.seckill.consumer.concurrency:1}",
+            autoStartup = "#{!${hmdp.seckill.consumer.batch-enabled:false}}")
     public void listenVoucherStockReduce(VoucherOrder voucherOrder){
 
         try {
@@ -244,6 +789,8 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             handleVoucherOrder(voucherOrder);
         } catch (Exception e) {
             log.error("订单处理失败", e);
+            // 异常在这里被吞掉了，消息不会再重投，这一单就算失败
+            orderStatusTable.markFailed(voucherOrder.getId());
             // 可选：处理失败时，可将消息重试或转移到死信队列
             /*
             if (voucherOrder != null) {
@@ -259,6 +806,96 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }
 
+    // RabbitMQ 批量消费：和上面的单条消费监听同一个队列，二选一，由 hmdp.seckill.consumer.batch-enabled 决定启动哪个
+    @RabbitListener(queues = "seckillOrder.queue",
+            containerFactory = "batchListenerContainerFactory",
+            concurrency = "${hmdp.seckill.consumer.concurrency:1}",
+            autoStartup = "${hmdp.seckill.consumer.batch-enabled:false}")
+    public void listenVoucherStockReduceBatch(List<Message> messages, Channel channel) throws IOException {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(messages.size());
+        List<Long> deliveryTags = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            long deliveryTag = message.getMessageProperties().getDeliveryTag();
+            Object body = messageConverter.fromMessage(message);
+            if (!(body instanceof VoucherOrder)) {
+                // 解析不了的消息重试也没用，直接 nack 不重回队列，让它进死信队列
+                log.error("订单消息反序列化失败，无法解析为VoucherOrder，deliveryTag：{}", deliveryTag);
+                channel.basicNack(deliveryTag, false, false);
+                continue;
+            }
+            voucherOrders.add((VoucherOrder) body);
+            deliveryTags.add(deliveryTag);
+        }
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+
+        // 监听方法是通过代理对象调用进来的，这里可以直接拿到代理，事务才会生效
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        try {
+            // 整批一个事务：一条多行 INSERT + 每张券一条 stock = stock - k
+            List<Long> created = proxy.createVoucherOrders(voucherOrders);
+            for (Long deliveryTag : deliveryTags) {
+                channel.basicAck(deliveryTag, false);
+            }
+            updateOrderStatus(voucherOrders, created);
+        } catch (Exception e) {
+            /*
+            整批失败（比如某张券库存不够扣 k 张，或者某条订单主键冲突），事务已经整体回滚
+            这时退回到逐条处理，把失败精确到某一条消息上：
+            成功的 ack，失败的 nack 且不重回队列，交给死信队列
+             */
+            log.error("批量创建订单失败，退回逐条处理，本批数量：{}", voucherOrders.size(), e);
+            for (int i = 0; i < voucherOrders.size(); i++) {
+                long deliveryTag = deliveryTags.get(i);
+                try {
+                    updateOrderStatus(voucherOrders.get(i).getId(), proxy.createVoucherOrder(voucherOrders.get(i)));
+                    channel.basicAck(deliveryTag, false);
+                } catch (Exception ex) {
+                    log.error("订单处理失败，订单ID：{}", voucherOrders.get(i).getId(), ex);
+                    // nack 以后进死信队列，状态由死信监听去改
+                    channel.basicNack(deliveryTag, false, false);
+                }
+            }
+        }
+    }
+
+    // 一次买多张券的多订单消息：一条消息一个事务，批量插入
+    @RabbitListener(bindings = @QueueBinding(
+            value = @Queue(
+                    name = "seckillOrderBatch.queue",
+                    arguments = {
+                            @Argument(name = "x-dead-letter-exchange", value = "seckillOrder.dlx.direct"),
+                            @Argument(name = "x-dead-letter-routing-key", value = "seckillOrder.batch.fail")
+                    }
+            ),
+            exchange = @Exchange(name = "seckillOrder.direct", type = ExchangeTypes.DIRECT),
+            key = {"seckillOrder.batch"}
+    ), concurrency = "${hmdp.seckill.consumer.concurrency:1}")
+    public void listenVoucherOrderBatch(VoucherOrderBatch batch){
+        if(batch == null || batch.getOrders() == null || batch.getOrders().isEmpty()){
+            log.error("多订单消息反序列化失败，无法解析为VoucherOrderBatch");
+            return;
+        }
+        List<VoucherOrder> voucherOrders = batch.getOrders();
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        try{
+            updateOrderStatus(voucherOrders, proxy.createVoucherOrders(voucherOrders));
+        }catch (Exception e){
+            // Redis 里是一起扣的，数据库里一般也能一起成功；真失败了（比如某张券数据库库存对不上）就逐条处理
+            log.error("多订单消息批量落库失败，退回逐条处理，订单ID：{}",
+                    voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList()), e);
+            for(VoucherOrder voucherOrder : voucherOrders){
+                try{
+                    updateOrderStatus(voucherOrder.getId(), proxy.createVoucherOrder(voucherOrder));
+                }catch (Exception ex){
+                    log.error("订单处理失败，订单ID：{}", voucherOrder.getId(), ex);
+                    orderStatusTable.markFailed(voucherOrder.getId());
+                }
+            }
+        }
+    }
+
     // 手动操作死信队列
     @RabbitListener(bindings = @QueueBinding(
             value = @Queue(name = "seckillOrder.dlx.queue"),
@@ -271,37 +908,86 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             return;
         }
         log.error("出现失败订单，已进入死信队列准备人工处理，订单ID：{}", voucherOrder.getId());
+        orderStatusTable.markFailed(voucherOrder.getId());
     }
 
+    // 多订单消息的死信队列
+    @RabbitListener(bindings = @QueueBinding(
+            value = @Queue(name = "seckillOrderBatch.dlx.queue"),
+            exchange = @Exchange(name = "seckillOrder.dlx.direct", type = ExchangeTypes.DIRECT),
+            key = {"seckillOrder.batch.fail"}
+    ))
+    public void listenVoucherOrderBatchFail(VoucherOrderBatch batch){
+        if(batch == null || batch.getOrders() == null){
+            log.error("多订单消息在传入死信队列后反序列化失败");
+            return;
+        }
+        List<Long> orderIds = batch.getOrders().stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        log.error("出现失败的多订单消息，已进入死信队列准备人工处理，订单ID：{}", orderIds);
+        orderIds.forEach(orderStatusTable::markFailed);
+    }
+
+    /*
+    以前这里先按用户拿一把 Redisson 锁，再 count 一次判断一人一单，每单多两次 Redis 往返和一次 SELECT
+    现在限购交给 tb_voucher_order 上的唯一索引 (user_id, voucher_id, buy_seq)，不需要分布式锁，消费者可以多线程并发跑
+     */
     private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //获取用户和锁
-        Long userId = voucherOrder.getUserId();
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
+        // 监听方法是通过代理对象调用进来的，这里可以直接拿到代理，事务才会生效
+        IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
+        updateOrderStatus(voucherOrder.getId(), proxy.createVoucherOrder(voucherOrder));
+    }
 
-        if(!isLock){
-            log.error("不允许重复下单！");
-            return;
+    // 事务提交以后再改状态，避免客户端看到“成功”时数据库里还查不到
+    private void updateOrderStatus(Long orderId, boolean created) {
+        if (created) {
+            orderStatusTable.markSuccess(orderId);
+        } else {
+            orderStatusTable.markFailed(orderId);
+        }
+    }
+
+    // 批量版：真正落库的标成功，被唯一索引挡掉的重复订单标失败
+    private void updateOrderStatus(List<VoucherOrder> voucherOrders, List<Long> created) {
+        Set<Long> createdIds = new HashSet<>(created);
+        List<Long> failed = new ArrayList<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!createdIds.contains(voucherOrder.getId())) {
+                failed.add(voucherOrder.getId());
+            }
         }
+        orderStatusTable.markSuccess(created);
+        failed.forEach(orderStatusTable::markFailed);
+    }
 
-        try{
-            proxy.createVoucherOrder(voucherOrder);
-        }finally{
-            lock.unlock();
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        Integer status = orderStatusTable.get(orderId);
+        if (status == null) {
+            return Result.fail("订单不存在或状态已过期！");
         }
+        return Result.ok(status);
     }
 
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder){
-
-        //通过这个用户的ID查询他下单的数量，实现一人一单
-        Long userID = voucherOrder.getUserId();
-        //数据库检查一下
-        Long count = query().eq("user_id", userID).eq("voucher_id", voucherOrder).count();
-        if(count > 0){
-            //这个用户下过这张优惠券的单
-            log.error("用户只能购买一次！");
-            return;
+    public boolean createVoucherOrder(VoucherOrder voucherOrder){
+        /*
+        先 INSERT IGNORE 占位：撞上唯一索引说明这个用户下过这张券的单，影响行数是 0，库存一点没动，直接返回
+        这样同一个用户的重复消息（MQ 重投、stream 重新认领）不需要加锁，数据库自己就挡住了
+        插进去以后再扣库存，扣不动就把整个事务回滚，刚插的订单也跟着撤掉
+        先插后扣还有个好处：热点的库存行锁是最后才拿的，持锁时间最短
+         */
+        /*
+        限购 N 张：Redis 给每一单发了一个序号 buy_seq（这个用户第几次买这张券），唯一索引是 (user_id, voucher_id, buy_seq)
+        同一个序号只能插进去一条，序号又不能超过券上的 user_limit（扣库存时一起判断），
+        所以每个用户最多 N 单，不用 count 这个用户已经买了几张
+         */
+        normalizeBuySeq(voucherOrder);
+        int inserted = getBaseMapper().insertIgnore(voucherOrder);
+        if(inserted == 0){
+            //这个用户的这一单已经落过库了（重复消息）
+            log.error("重复订单！userId：{}，voucherId：{}，buySeq：{}",
+                    voucherOrder.getUserId(), voucherOrder.getVoucherId(), voucherOrder.getBuySeq());
+            return false;
         }
 
         //扣减库存数
@@ -321,13 +1007,106 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
                  */
                 .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
+                // 序号超过限购数量的单也扣不动，和库存不足一样回滚
+                .ge("user_limit", voucherOrder.getBuySeq())
                 // where id = ? and stock = ?
                 .update();
         if(!success) {
-            log.error("库存不足！");
-            return;
+            // 不抛异常（抛了消息会被重试/进死信），只把事务标记成回滚，撤掉上面插入的订单
+            log.error("库存不足或超过限购数量！voucherId：{}，buySeq：{}", voucherOrder.getVoucherId(), voucherOrder.getBuySeq());
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+    批量版的 createVoucherOrder，给批量消费用
+    单条版每个订单要一次插入 + 一次扣库存，而且各自一个事务
+    这里整批一个事务，每张券一条多行 INSERT IGNORE，插进去几条就扣几张库存
+    任何一步失败就抛异常整体回滚，由调用方退回逐条处理
+    返回真正落库的订单ID：被 IGNORE 掉的重复订单不算，调用方按这个改订单状态
+     */
+    @Transactional
+    public List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders){
+        List<Long> created = new ArrayList<>(voucherOrders.size());
+        // 按优惠券分组，每张券单独算实际插进去了几条
+        Map<Long, List<VoucherOrder>> ordersByVoucher = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            normalizeBuySeq(voucherOrder);
+            ordersByVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersByVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+
+            // 已经下过单的（包括同一批里重复的）撞唯一索引被忽略，不用再先查一遍
+            int k = getBaseMapper().insertBatch(orders);
+            if (k < orders.size()) {
+                log.error("重复订单！voucherId：{}，忽略重复订单{}条", voucherId, orders.size() - k);
+                /*
+                影响行数只有条数，不知道是哪几条被忽略了，在同一个事务里按订单ID查回来：
+                查得到的是这次插进去的，或者同一个订单的重复消息（以前已经落过库），都算成功；
+                查不到的是同一个序号被别的订单占了，算失败
+                 */
+                List<Long> ids = orders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+                query().select("id").in("id", ids).list().forEach(o -> created.add(o.getId()));
+            } else {
+                orders.forEach(o -> created.add(o.getId()));
+            }
+            if (k == 0) {
+                continue;
+            }
+
+            // 聚合扣减：stock = stock - k，同样靠 stock >= k 这个条件在数据库端保证不超卖
+            // 这一批里最大的序号不超过限购数量，所有订单就都没超
+            int maxBuySeq = orders.stream().mapToInt(VoucherOrder::getBuySeq).max().getAsInt();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", voucherId).ge("stock", k)
+                    .ge("user_limit", maxBuySeq)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("库存不足或超过限购数量！voucherId：" + voucherId
+                        + "，本批需扣减：" + k + "，最大购买序号：" + maxBuySeq);
+            }
+        }
+        return created;
+    }
+
+    /*
+    抽签开奖落库：整个活动一条 UPDATE 扣掉全部中签数量，订单按 LOTTERY_INSERT_CHUNK 条一批多行插入，一个事务
+    扣库存时要求 sale_mode 还是 1（报名中），同时改成 2（已开奖），所以同一张券只能开一次奖，开过的返回 false
+     */
+    @Override
+    @Transactional
+    public boolean createLotteryOrders(Long voucherId, List<VoucherOrder> voucherOrders){
+        int k = voucherOrders.size();
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + k)
+                .set("sale_mode", SALE_MODE_LOTTERY_DRAWN)
+                .eq("voucher_id", voucherId).eq("sale_mode", SALE_MODE_LOTTERY).ge("stock", k)
+                .update();
+        if (!success) {
+            return false;
+        }
+        for (int i = 0; i < k; i += LOTTERY_INSERT_CHUNK) {
+            List<VoucherOrder> chunk = voucherOrders.subList(i, Math.min(k, i + LOTTERY_INSERT_CHUNK));
+            int inserted = getBaseMapper().insertBatch(chunk);
+            if (inserted != chunk.size()) {
+                // 中签的人各不相同，订单号也是新发的，不应该有冲突；真有就整体回滚，库存和订单对不上更麻烦
+                throw new IllegalStateException("抽签订单写入不完整！voucherId：" + voucherId
+                        + "，应写入：" + chunk.size() + "，实际写入：" + inserted);
+            }
+        }
+        return true;
+    }
+
+    // 升级前已经在队列里的消息没有 buySeq，按一人一单的第 1 单处理
+    private static void normalizeBuySeq(VoucherOrder voucherOrder) {
+        if (voucherOrder.getBuySeq() == null) {
+            voucherOrder.setBuySeq(1);
         }
-        //创建订单
-        save(voucherOrder);
     }
 }
@@ -7,14 +7,17 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.SoldOutGate;
+import com.hmdp.utils.TwoLevelCache;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHERS_KEY;
+import static com.hmdp.utils.SystemConstants.SALE_MODE_FIRST_COME;
+import static com.hmdp.utils.SystemConstants.SALE_MODE_LOTTERY;
 
 /**
  * <p>
@@ -30,16 +33,27 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SoldOutGate soldOutGate;
+    @Resource
+    private TwoLevelCache twoLevelCache;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 查询优惠券信息，列表里的库存本来就是数据库里异步扣减后的值，缓存时间配得很短
+        List<Voucher> vouchers = twoLevelCache.getList(CACHE_SHOP_VOUCHERS_KEY, shopId, Voucher.class,
+                getBaseMapper()::queryVoucherOfShop);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    @Override
+    public Result addVoucher(Voucher voucher) {
+        save(voucher);
+        // 店铺的优惠券列表变了
+        twoLevelCache.evict(CACHE_SHOP_VOUCHERS_KEY, voucher.getShopId());
+        return Result.ok(voucher.getId());
+    }
+
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
@@ -49,12 +63,19 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setUserLimit(voucher.getUserLimit() == null ? 1 : Math.max(voucher.getUserLimit(), 1));
+        // 新建的券只能选先到先得或者抽签，“已开奖”只能由开奖任务写
+        seckillVoucher.setSaleMode(Integer.valueOf(SALE_MODE_LOTTERY).equals(voucher.getSaleMode())
+                ? SALE_MODE_LOTTERY : SALE_MODE_FIRST_COME);
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        //保存到redis中
-        stringRedisTemplate.opsForValue()
-                .set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        //预热到redis中，库存、时间窗口、上下架状态、限购数量都放进去，抢购时 lua 脚本自己判断
+        seckillVoucherService.preheat(seckillVoucher, voucher, true);
+        //库存补上了，清掉各节点本地的售罄标记
+        soldOutGate.clear(voucher.getId());
+        //店铺的优惠券列表变了
+        twoLevelCache.evict(CACHE_SHOP_VOUCHERS_KEY, voucher.getShopId());
     }
 }
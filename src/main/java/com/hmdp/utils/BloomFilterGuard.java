@@ -0,0 +1,282 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_BLOOM_REBUILD_KEY;
+
+/*
+布隆过滤器，挡住查询不存在 ID 的请求（缓存穿透）
+以前不存在的 ID 会在 Redis 里留一个空串 key，还要查一次数据库；有人拿随机 ID 扫的话，Redis 里全是空值 key，数据库也一个 ID 挨一次
+现在 CacheClient 先问布隆过滤器，它说不存在就直接返回，Redis 和数据库都不碰
+
+每个过滤器按它保护的缓存 key 前缀注册（比如 cache:shop:），以后用户、笔记、优惠券也按同样的方式注册就行
+  Redis 里是一个位图 bloom:{name}，所有节点共用，新增数据时写它（bloom_add.lua）
+  每个节点有一份本地副本（AtomicLongArray，位的顺序和 Redis 位图一样），查询先看本地，本地说有就是有
+  本地说没有再去 Redis 确认一次（bloom_check.lua）：别的节点刚加的 ID 本地副本还没同步到，不能直接挡掉
+  这样正常的 ID 查询不多花一次网络，扫不存在 ID 的请求每次多一次 Redis 调用，但不会写 key、不会打到数据库
+本地副本每 refresh-ms 从 Redis 整个拉一次；位图每 rebuild-ms 由一个节点从数据库全量重建一次（删掉的数据会留在位图里，靠重建清掉）
+位图还没建好时一律放行
+ */
+@Slf4j
+@Component
+public class BloomFilterGuard {
+
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+    private static final DefaultRedisScript<Long> CHECK_SCRIPT;
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+        CHECK_SCRIPT = new DefaultRedisScript<>();
+        CHECK_SCRIPT.setLocation(new ClassPathResource("bloom_check.lua"));
+        CHECK_SCRIPT.setResultType(Long.class);
+    }
+    // 重建时一次从数据库读多少个 ID
+    private static final int REBUILD_PAGE_SIZE = 5000;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+    @Value("${hmdp.bloom.fpp:0.01}")
+    private double fpp;
+    @Value("${hmdp.bloom.rebuild-ms:3600000}")
+    private long rebuildMillis;
+
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    /*
+    数据库里的 ID 分页读取方式：返回大于 afterId 的最多 limit 个 ID，按 ID 升序
+    重建完成后还会再读一次比最后一个 ID 大的，把重建期间新插入的补上
+     */
+    @FunctionalInterface
+    public interface IdPager {
+        List<Long> idsAfter(long afterId, int limit);
+    }
+
+    public void register(String keyPre, String name, IdPager pager) {
+        // m = -n * ln(p) / (ln2)^2，k = m / n * ln2，位数取 64 的倍数，本地副本正好是整数个 long
+        long bits = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        bits = (bits + 63) / 64 * 64;
+        int hashes = Math.max(1, (int) Math.round((double) bits / expectedInsertions * Math.log(2)));
+        Filter filter = new Filter(keyPre, name, bits, hashes, pager);
+        filters.put(keyPre, filter);
+        try {
+            refresh(filter);
+        } catch (Exception e) {
+            // 启动时 Redis 不可用不影响启动，本地副本没加载前一律放行，等定时任务再建
+            log.error("布隆过滤器初始化失败，name：{}", filter.name, e);
+        }
+    }
+
+    // 没有给这个前缀注册过滤器的，一律当成存在
+    public boolean mightContain(String keyPre, Object id) {
+        Filter filter = filters.get(keyPre);
+        if (filter == null) {
+            return true;
+        }
+        long[] positions = filter.positions(id);
+        AtomicLongArray local = filter.local;
+        if (local == null || filter.contains(local, positions)) {
+            return true;
+        }
+        Long remote = stringRedisTemplate.execute(CHECK_SCRIPT,
+                Collections.singletonList(filter.redisKey), toArgs(positions));
+        if (remote != null && remote == 1) {
+            // 别的节点加的，补到本地副本里，下次就不用再问 Redis 了
+            filter.setAll(local, positions);
+            return true;
+        }
+        return false;
+    }
+
+    // 新增数据以后调用，写 Redis 位图，同时写本地副本
+    public void add(String keyPre, Object id) {
+        Filter filter = filters.get(keyPre);
+        if (filter == null) {
+            return;
+        }
+        long[] positions = filter.positions(id);
+        stringRedisTemplate.execute(ADD_SCRIPT, Collections.singletonList(filter.redisKey), toArgs(positions));
+        AtomicLongArray local = filter.local;
+        if (local != null) {
+            filter.setAll(local, positions);
+        }
+    }
+
+    /*
+    定时任务：每个节点都会跑
+    重建锁的过期时间就是重建周期，而且重建成功以后不释放，所以整个集群每个周期只有一个节点会去扫数据库（失败了会释放）
+    其余节点只是把 Redis 里的位图拉下来刷新本地副本
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.refresh-ms:60000}")
+    public void refreshAll() {
+        filters.values().forEach(filter -> {
+            try {
+                refresh(filter);
+            } catch (Exception e) {
+                log.error("布隆过滤器刷新失败，name：{}", filter.name, e);
+            }
+        });
+    }
+
+    private void refresh(Filter filter) {
+        Boolean rebuild = stringRedisTemplate.opsForValue().setIfAbsent(
+                LOCK_BLOOM_REBUILD_KEY + filter.name, "1", rebuildMillis, TimeUnit.MILLISECONDS);
+        if (Boolean.TRUE.equals(rebuild)) {
+            try {
+                rebuild(filter);
+            } catch (RuntimeException e) {
+                // 重建失败把锁放掉，下一轮（任何一个节点）就能重试，不然整个集群要等一个重建周期，第一次建的话这段时间过滤器一直不拦
+                stringRedisTemplate.delete(LOCK_BLOOM_REBUILD_KEY + filter.name);
+                throw e;
+            }
+            return;
+        }
+        byte[] bitmap = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands()
+                .get(filter.redisKey.getBytes(StandardCharsets.UTF_8)));
+        if (bitmap == null) {
+            // 位图还没建好（别的节点正在重建），先不拦
+            return;
+        }
+        filter.local = fromBytes(bitmap, filter.bits);
+    }
+
+    // 在本地把整个位图算好，写到临时 key 上再 RENAME 过去，读的人不会看到建了一半的位图
+    private void rebuild(Filter filter) {
+        long begin = System.currentTimeMillis();
+        AtomicLongArray local = new AtomicLongArray((int) (filter.bits / 64));
+        long lastId = 0;
+        long count = 0;
+        List<Long> ids;
+        while (!(ids = filter.pager.idsAfter(lastId, REBUILD_PAGE_SIZE)).isEmpty()) {
+            for (Long id : ids) {
+                filter.setAll(local, filter.positions(id));
+            }
+            lastId = ids.get(ids.size() - 1);
+            count += ids.size();
+        }
+        byte[] tmpKey = (filter.redisKey + ":tmp").getBytes(StandardCharsets.UTF_8);
+        byte[] bitmap = toBytes(local);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.stringCommands().set(tmpKey, bitmap);
+            connection.keyCommands().rename(tmpKey, filter.redisKey.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        filter.local = local;
+        // 扫描期间新插入的数据写在了旧位图上，被 RENAME 覆盖掉了，按 ID 补一遍
+        long caughtUp = 0;
+        while (!(ids = filter.pager.idsAfter(lastId, REBUILD_PAGE_SIZE)).isEmpty()) {
+            for (Long id : ids) {
+                add(filter.keyPre, id);
+            }
+            lastId = ids.get(ids.size() - 1);
+            caughtUp += ids.size();
+        }
+        log.info("布隆过滤器重建完成，name：{}，数量：{}，补录：{}，位数：{}，哈希数：{}，耗时：{}ms",
+                filter.name, count, caughtUp, filter.bits, filter.hashes, System.currentTimeMillis() - begin);
+    }
+
+    private static Object[] toArgs(long[] positions) {
+        Object[] args = new Object[positions.length];
+        for (int i = 0; i < positions.length; i++) {
+            args[i] = String.valueOf(positions[i]);
+        }
+        return args;
+    }
+
+    // Redis 位图第 0 位是第一个字节的最高位，按大端把每 8 个字节拼成一个 long，位的顺序就和本地副本一致
+    private static AtomicLongArray fromBytes(byte[] bitmap, long bits) {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (bits / 8));
+        buffer.put(bitmap, 0, Math.min(bitmap.length, buffer.capacity()));
+        buffer.flip();
+        buffer.limit(buffer.capacity());
+        AtomicLongArray words = new AtomicLongArray((int) (bits / 64));
+        for (int i = 0; i < words.length(); i++) {
+            words.set(i, buffer.getLong());
+        }
+        return words;
+    }
+
+    private static byte[] toBytes(AtomicLongArray words) {
+        ByteBuffer buffer = ByteBuffer.allocate(words.length() * 8);
+        for (int i = 0; i < words.length(); i++) {
+            buffer.putLong(words.get(i));
+        }
+        return buffer.array();
+    }
+
+    private static final class Filter {
+        final String keyPre;
+        final String name;
+        final String redisKey;
+        final long bits;
+        final int hashes;
+        final IdPager pager;
+        // 本地副本，刷新时整个换掉；null 表示还没加载到
+        volatile AtomicLongArray local;
+
+        Filter(String keyPre, String name, long bits, int hashes, IdPager pager) {
+            this.keyPre = keyPre;
+            this.name = name;
+            this.redisKey = BLOOM_KEY + name;
+            this.bits = bits;
+            this.hashes = hashes;
+            this.pager = pager;
+        }
+
+        // murmur3 128 位的高低两半做双重哈希：第 i 个位置是 h1 + i * h2
+        long[] positions(Object id) {
+            long[] hash = MurmurHash.hash128(String.valueOf(id));
+            long[] positions = new long[hashes];
+            for (int i = 0; i < hashes; i++) {
+                positions[i] = Math.floorMod(hash[0] + i * hash[1], bits);
+            }
+            return positions;
+        }
+
+        boolean contains(AtomicLongArray words, long[] positions) {
+            for (long position : positions) {
+                if ((words.get((int) (position >>> 6)) & mask(position)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void setAll(AtomicLongArray words, long[] positions) {
+            for (long position : positions) {
+                int index = (int) (position >>> 6);
+                long mask = mask(position);
+                long word;
+                while (((word = words.get(index)) & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                    // CAS 失败说明同一个 long 里别的位刚被改了，重读再试
+                }
+            }
+        }
+
+        // 每个 long 里从最高位开始放，和 Redis 位图的位序一致
+        private long mask(long position) {
+            return 1L << (63 - (position & 63));
+        }
+    }
+}
@@ -2,16 +2,27 @@ package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.dto.Result;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -20,9 +31,46 @@ import static com.hmdp.utils.RedisConstants.*;
 public class CacheClient {
 
     private StringRedisTemplate stringRedisTemplate;
+    private LockMetrics lockMetrics;
+    private BloomFilterGuard bloomFilterGuard;
+    // 重建锁的过期时间（秒）
+    private static final long REBUILD_LOCK_TTL = 30L;
+    private static final String CACHE_KEY_PREFIX = "cache:";
+    private static final String LOCK_KEY_PREFIX = "lock:";
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    /*
+    逻辑过期的后台重建线程池：线程数和队列长度都是有上限的
+    队列满了就不重建了（调用方照样拿到旧值），下一次读到过期数据时再提交
+     */
+    private final ThreadPoolExecutor rebuildExecutor;
+    // 本节点正在重建的 key，同一个 key 同时只提交一个重建任务
+    private final Set<String> rebuilding = ConcurrentHashMap.newKeySet();
+    // 本节点正在加载（缓存没命中）的 key 和对应的加载任务
+    private final Map<String, CompletableFuture<Object>> loads = new ConcurrentHashMap<>();
+    // 等别人加载的线程最多等多久（毫秒）
+    private final long singleFlightMaxWaitMillis;
+    // 加载线程没抢到 Redis 锁时，隔多久看一次别的节点有没有写回来
+    private static final long SINGLE_FLIGHT_POLL_MILLIS = 20L;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, LockMetrics lockMetrics, BloomFilterGuard bloomFilterGuard,
+                       @Value("${hmdp.cache.rebuild.threads:4}") int rebuildThreads,
+                       @Value("${hmdp.cache.rebuild.queue:1000}") int rebuildQueue,
+                       @Value("${hmdp.cache.single-flight.max-wait-ms:2000}") long singleFlightMaxWaitMillis){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.lockMetrics = lockMetrics;
+        this.bloomFilterGuard = bloomFilterGuard;
+        this.singleFlightMaxWaitMillis = singleFlightMaxWaitMillis;
+        this.rebuildExecutor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(rebuildQueue), r -> {
+                    Thread t = new Thread(r, "cache-rebuild");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void shutdown(){
+        rebuildExecutor.shutdownNow();
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
@@ -35,84 +83,272 @@ public class CacheClient {
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
 
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        //写的是带过期时间的 RedisData，而且不设 TTL：过期只是逻辑上的，key 一直在，读的人永远能拿到一份数据
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+    }
+
+    /*
+    逻辑过期读：缓存里存的是 RedisData（数据 + 逻辑过期时间），key 本身不过期
+      没过期：直接返回
+      过期了：提交一个后台重建任务（本节点同一个 key 只提交一次，跨节点再用 lock:shop: 互斥），自己马上返回旧数据
+    热点 key 过期的那一刻没有人需要等数据库，也没有 sleep 重试，p99 不会跳
+    key 不存在（第一次访问，或者更新后被删掉了）时没有旧数据可返回，只能当场查一次数据库写回去（本节点合并成一次）
+     */
+    public <R, ID> R queryWithLogicalExpire(
+            String keyPre, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit unit){
+        return queryWithLogicalExpire(keyPre, id, type, dbFallBack, time, unit,
+                TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+    }
+
+    // 同上，nullTtlSeconds：数据库里没有时空值缓存多久，<= 0 表示不缓存空值（给 TwoLevelCache 按区域配）
+    public <R, ID> R queryWithLogicalExpire(String keyPre, ID id, Class<R> type, Function<ID, R> dbFallBack,
+            Long time, TimeUnit unit, long nullTtlSeconds){
+        //布隆过滤器说不存在的 ID 直接返回，不查 Redis、不查数据库，也不写空值
+        if(!bloomFilterGuard.mightContain(keyPre, id)){
+            return null;
+        }
+        String key = keyPre + id;
+        String json = stringRedisTemplate.opsForValue().get(key);
+        if(json == null){
+            //冷 key 同样走 single-flight，本节点只有一个线程去查数据库
+            return singleFlight(key, () -> rebuildLogical(key, id, dbFallBack, time, unit, nullTtlSeconds));
+        }
+        //缓存的空值，防止缓存穿透
+        if(json.isEmpty()){
+            return null;
+        }
+        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+        if(redisData.getExpireTime() == null){
+            //切换之前 queryWithPassThough 写的老格式（直接是数据本身），当成没命中，换成新格式
+            //刚切换时热点 key 上所有并发的读都会走到这里，和冷 key 一样合并成一次数据库查询
+            return singleFlight(key, () -> rebuildLogical(key, id, dbFallBack, time, unit, nullTtlSeconds));
+        }
+        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        if(redisData.getExpireTime().isAfter(LocalDateTime.now())){
+            return r;
+        }
+
+        //过期了，交给后台重建，自己先把旧数据带回去
+        if(rebuilding.add(key)){
+            try{
+                rebuildExecutor.execute(() -> {
+                    try{
+                        rebuildIfStale(key, id, dbFallBack, time, unit, nullTtlSeconds);
+                    }catch (Exception e){
+                        log.error("缓存重建失败，key：{}", key, e);
+                    }finally {
+                        rebuilding.remove(key);
+                    }
+                });
+            }catch (RejectedExecutionException e){
+                rebuilding.remove(key);
+                log.warn("缓存重建队列已满，先返回旧数据，key：{}", key);
+            }
+        }
+        return r;
+    }
+
+    private <R, ID> void rebuildIfStale(String key, ID id, Function<ID, R> dbFallBack, Long time, TimeUnit unit,
+            long nullTtlSeconds){
+        String lockKey = lockKeyOf(key);
+        String metric = lockMetricOf(lockKey);
+        long begin = System.nanoTime();
+        boolean isLock = tryLock(lockKey);
+        long lockedAt = System.nanoTime();
+        lockMetrics.recordAcquire(metric, lockedAt - begin, isLock);
+        if(!isLock){
+            //别的节点正在重建
+            return;
+        }
+        try{
+            //双重检查：可能刚刚别人已经重建完了
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if(StrUtil.isNotBlank(json)){
+                LocalDateTime expireTime = JSONUtil.toBean(json, RedisData.class).getExpireTime();
+                if(expireTime != null && expireTime.isAfter(LocalDateTime.now())){
+                    return;
+                }
+            }
+            rebuildLogical(key, id, dbFallBack, time, unit, nullTtlSeconds);
+        }finally {
+            unlock(lockKey);
+            lockMetrics.recordRelease(metric, System.nanoTime() - lockedAt, REBUILD_LOCK_TTL);
+        }
+    }
+
+    private <R, ID> R rebuildLogical(String key, ID id, Function<ID, R> dbFallBack, Long time, TimeUnit unit,
+            long nullTtlSeconds){
+        R r = dbFallBack.apply(id);
+        if(r == null){
+            //数据库里也没有，写空值（这个是真的会过期的）
+            if(nullTtlSeconds > 0){
+                stringRedisTemplate.opsForValue().set(key, "", nullTtlSeconds, TimeUnit.SECONDS);
+            }
+            return null;
+        }
+        setWithLogicalExpire(key, r, time, unit);
+        return r;
     }
 
     /*
     封装的工具类，用来查询指定的key，并反序列化为指定类型
     使用互斥锁进行缓存重建解决缓存击穿
     同时利用缓存空值的方式解决缓存穿透
+
+    以前没拿到锁的线程 sleep 100ms 再递归整个方法，没有次数上限，一个冷 key 能把一批 Tomcat 线程拖住
+    现在分两层：
+      JVM 内 single-flight：同一个 key 同时没命中的请求共用一个加载任务（CompletableFuture），只有发起的那个线程去干活，
+                           其余的最多等 single-flight.max-wait-ms，超时直接报错，不递归
+      跨节点互斥：只有这个加载线程去抢 Redis 的 lock:shop:，抢不到就轮询 Redis 等别的节点写回来，同样有总时长上限
      */
     public <R, ID> R queryWithPassThough(
             String keyPre, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit unit){
+        return queryWithPassThough(keyPre, id, json -> JSONUtil.toBean(json, type), dbFallBack, time, unit,
+                TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL));
+    }
+
+    /*
+    同上，给 TwoLevelCache 用的通用版本
+      decoder：怎么把 Redis 里的 JSON 还原回来（列表要用 JSONUtil.toList，只传 Class 做不到）
+      nullTtlSeconds：数据库里没有时空值缓存多久，<= 0 表示不缓存空值
+     */
+    public <R, ID> R queryWithPassThough(String keyPre, ID id, Function<String, R> decoder,
+            Function<ID, R> dbFallBack, Long time, TimeUnit unit, long nullTtlSeconds){
 
+        //布隆过滤器说不存在的 ID 直接返回，不查 Redis、不查数据库，也不写空值
+        if(!bloomFilterGuard.mightContain(keyPre, id)){
+            return null;
+        }
         String key = keyPre + id;
 
         //从redis查询商铺缓存
         String json = stringRedisTemplate.opsForValue().get(key);
         if(StrUtil.isNotBlank(json)){
             //这里是value有字符串才返回，空串和没找到都会跳过去
-            return JSONUtil.toBean(json, type);
+            return decoder.apply(json);
         }
         //判断一下命中的是不是空值
         if(json != null){
             return null;
         }
 
-        //实现缓存重建
+        //实现缓存重建，本节点同一个 key 只有一个线程去做
+        return singleFlight(key, () -> loadWithMutex(key, id, decoder, dbFallBack, time, unit, nullTtlSeconds));
+    }
+
+    private <R, ID> R loadWithMutex(String key, ID id, Function<String, R> decoder,
+            Function<ID, R> dbFallBack, Long time, TimeUnit unit, long nullTtlSeconds){
         //获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        R r = null;
-        boolean isLock = false;
-
-        try {
-            isLock = tryLock(lockKey);
-            if (!isLock) {
-                Thread.sleep(100);  // 等待其他线程重建
-                // 直接递归重试整个方法，大概率命中缓存
-                return queryWithPassThough(keyPre, id, type, dbFallBack, time, unit);
+        String lockKey = lockKeyOf(key);
+        String metric = lockMetricOf(lockKey);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(singleFlightMaxWaitMillis);
+        while(true){
+            long begin = System.nanoTime();
+            boolean isLock = tryLock(lockKey);
+            long lockedAt = System.nanoTime();
+            lockMetrics.recordAcquire(metric, lockedAt - begin, isLock);
+            if(isLock){
+                try{
+                    //拿到锁了之后，说明你是第一个发起请求的人
+                    //双重检查：获取锁后再次查缓存
+                    String json = stringRedisTemplate.opsForValue().get(key);
+                    if(StrUtil.isNotBlank(json)){
+                        return decoder.apply(json);
+                    }
+                    if(json != null){
+                        return null;
+                    }
+                    //要是真的没找到，就去数据库里面找
+                    R r = dbFallBack.apply(id);
+
+                    //要是还没找到
+                    if(r == null){
+                        //写入空值，防止缓存穿透
+                        if(nullTtlSeconds > 0){
+                            stringRedisTemplate.opsForValue()
+                                    .set(key, "", nullTtlSeconds, TimeUnit.SECONDS);
+                        }
+                        return null;
+                    }
+                    //写入redis
+                    this.set(key, r, time, unit);
+                    return r;
+                }finally {
+                    //只有拿到锁的时候才释放，没拿到就去删会误删别人的锁
+                    unlock(lockKey);
+                    lockMetrics.recordRelease(metric, System.nanoTime() - lockedAt, REBUILD_LOCK_TTL);
+                }
             }
 
-            //拿到锁了之后，说明你是第一个发起请求的人
-            //双重检查：获取锁后再次查缓存
-            json = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(json)) {
-                return JSONUtil.toBean(json, type);
+            //锁在别的节点手里，等它把数据写回 Redis
+            if(System.nanoTime() > deadline){
+                throw new IllegalStateException("等待缓存重建超时，key：" + key);
             }
-            if (json != null) {
-                return null;
+            try{
+                Thread.sleep(SINGLE_FLIGHT_POLL_MILLIS);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存重建被中断，key：" + key, e);
+            }
+            String json = stringRedisTemplate.opsForValue().get(key);
+            if(StrUtil.isNotBlank(json)){
+                return decoder.apply(json);
             }
-            //要是真的没找到，就去数据库里面找
-            r = dbFallBack.apply(id);
-
-            //要是还没找到
-            if (r == null) {
-                //写入空值，防止缓存穿透
-                stringRedisTemplate.opsForValue()
-                        .set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            if(json != null){
                 return null;
             }
-            //写入redis
-            this.set(key, r, time, unit);
-        }catch (InterruptedException e){
-            throw new RuntimeException(e);
-        }finally {
-            /*
-            释放互斥锁
-            如果当前线程没有成功获取锁（isLock == false），直接走了递归返回
-            那finally仍然会执行 unlock(lockKey)，这会误删掉正在持有锁的线程的锁，导致多个线程同时进入重建逻辑，击穿数据库！
-            必须只在成功获取锁时才释放。
-             */
-            if(isLock){
-                unlock(lockKey);
+        }
+    }
+
+    /*
+    重建锁按缓存 key 来：cache:shop:1 -> lock:shop:1，cache:user:1 -> lock:user:1
+    以前固定用 lock:shop: + id，别的业务用同一个 id 会抢到同一把锁
+     */
+    private static String lockKeyOf(String key){
+        return key.startsWith(CACHE_KEY_PREFIX) ? LOCK_KEY_PREFIX + key.substring(CACHE_KEY_PREFIX.length())
+                : LOCK_KEY_PREFIX + key;
+    }
+
+    // 锁的监控按业务汇总（cache:lock:shop），不按单个 id
+    private static String lockMetricOf(String lockKey){
+        return CACHE_KEY_PREFIX + LockMetrics.prefixOf(lockKey);
+    }
+
+    /*
+    同一个 key 同时只有一个线程执行 loader，其余线程等它的结果（最多 single-flight.max-wait-ms）
+    加载完就从表里删掉，不缓存结果，结果本来就写在 Redis 里了
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader){
+        CompletableFuture<Object> mine = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = loads.putIfAbsent(key, mine);
+        if(inFlight != null){
+            try{
+                return (R) inFlight.get(singleFlightMaxWaitMillis, TimeUnit.MILLISECONDS);
+            }catch (TimeoutException e){
+                throw new IllegalStateException("等待缓存加载超时，key：" + key);
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存加载被中断，key：" + key, e);
+            }catch (ExecutionException e){
+                throw new IllegalStateException("缓存加载失败，key：" + key, e.getCause());
             }
         }
-        return r;
+        try{
+            R r = loader.get();
+            mine.complete(r);
+            return r;
+        }catch (RuntimeException e){
+            mine.completeExceptionally(e);
+            throw e;
+        }finally {
+            loads.remove(key, mine);
+        }
     }
 
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue()
-                .setIfAbsent(key, "1", 30, TimeUnit.SECONDS);
+                .setIfAbsent(key, "1", REBUILD_LOCK_TTL, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
     }
 
@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/*
+分布式锁门面：先在 JVM 里挡一道，本节点抢赢了的那个请求才去 Redis 拿锁
+用户连点、重复提交的请求大多落在同一个节点上，以前每个都要 SET NX（或者 Redisson 的 lua）跑一趟 Redis 才知道拿不到，
+现在同一个节点上同一把锁同时只有一个线程会去 Redis，其余的在本地直接返回 false，一次网络都没有
+
+本地这一层用 ConcurrentHashMap 按锁名记录“本节点谁拿着”，而不是按哈希分段的 ReentrantLock 数组：
+tryLock 是不等待的，分段锁会让哈希到同一段的不同用户互相挡住，直接返回“拿不到锁”（在下单里就是“只能买一张”）
+ConcurrentHashMap 本身就是按桶分段加锁的，锁名之间不会误伤
+
+真正的互斥仍然由后端的 Redis 锁保证（不同节点之间），后端由 hmdp.lock.backend 选择：simple（SimpleRedisLock）或 redisson
+ */
+public class CoalescingLockFactory {
+
+    private final Function<String, ILock> backend;
+    private final Map<String, Holder> holders = new ConcurrentHashMap<>();
+    // 本地挡掉的次数记到 LockMetrics 里和后端锁同一行（backendName:前缀），不需要统计时传 null
+    private final LockMetrics metrics;
+    private final String backendName;
+
+    public CoalescingLockFactory(Function<String, ILock> backend) {
+        this(backend, null, null);
+    }
+
+    public CoalescingLockFactory(Function<String, ILock> backend, LockMetrics metrics, String backendName) {
+        this.backend = backend;
+        this.metrics = metrics;
+        this.backendName = backendName;
+    }
+
+    public ILock getLock(String name) {
+        return new CoalescingLock(name);
+    }
+
+    // 本节点上持有某把锁的线程，以及它重入了几次（holds 只有持有者自己会改）
+    private static final class Holder {
+        final Thread owner = Thread.currentThread();
+        int holds;
+    }
+
+    private final class CoalescingLock implements ILock {
+        private final String name;
+        private final ILock remote;
+
+        CoalescingLock(String name) {
+            this.name = name;
+            this.remote = backend.apply(name);
+        }
+
+        @Override
+        public boolean tryLock(Long timeoutSec) {
+            Holder holder = new Holder();
+            Holder existed = holders.putIfAbsent(name, holder);
+            if (existed != null) {
+                if (existed.owner != Thread.currentThread()) {
+                    // 本节点已经有别的线程拿着（或者正在拿）这把锁，不用再去 Redis 问了
+                    if (metrics != null) {
+                        metrics.recordCoalesced(backendName + ":" + LockMetrics.prefixOf(name));
+                    }
+                    return false;
+                }
+                // 同一个线程重入：能不能重入由后端决定（SimpleRedisLock 不能，Redisson 能）
+                holder = existed;
+            }
+            boolean success;
+            try {
+                success = remote.tryLock(timeoutSec);
+            } catch (RuntimeException e) {
+                release(holder);
+                throw e;
+            }
+            if (!success) {
+                release(holder);
+                return false;
+            }
+            holder.holds++;
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            Holder holder = holders.get(name);
+            if (holder == null || holder.owner != Thread.currentThread()) {
+                return;
+            }
+            try {
+                remote.unlock();
+            } finally {
+                holder.holds--;
+                release(holder);
+            }
+        }
+
+        // 一次都没拿到（或者全部释放完）才把本地记录删掉
+        private void release(Holder holder) {
+            if (holder.holds == 0) {
+                holders.remove(name, holder);
+            }
+        }
+    }
+}
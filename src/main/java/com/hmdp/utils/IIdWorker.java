@@ -0,0 +1,14 @@
+package com.hmdp.utils;
+
+public interface IIdWorker {
+    long nextId(String keyPre);
+
+    // 一次要多个 ID，默认逐个生成；号段和雪花模式下这本来就是纯内存操作
+    default long[] nextIds(String keyPre, int count) {
+        long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = nextId(keyPre);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+分布式锁的监控：按“后端 + 锁名前缀”统计（比如 simple:order、redisson:order、cache:lock:shop）
+  attempts / failures  加锁次数、没拿到的次数
+  coalesced            在本节点就被挡掉、没去 Redis 的次数（CoalescingLockFactory）
+  expiredWhileHeld     持有时间超过了锁的过期时间：释放的时候锁早就过期了，这段时间里别人可能也拿到了锁
+  acquireLatency       加锁耗时的直方图（去 Redis 的那一下）
+  holdTime             从拿到锁到释放的直方图
+直方图是固定分桶 + LongAdder，记录时没有锁，也不保存原始样本，内存是固定的
+通过 GET /metrics/locks 查看（要登录）
+ */
+@Component
+public class LockMetrics {
+
+    // 直方图分桶的上界（微秒），最后一个桶是“更大”
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+            100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000, 10_000_000, 30_000_000, 60_000_000
+    };
+
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    // 给一把 ILock 套上统计，backend 用来区分 simple/redisson 这些实现
+    public ILock instrument(String backend, String name, ILock lock) {
+        return new InstrumentedLock(stats(backend + ":" + prefixOf(name)), lock);
+    }
+
+    public void recordAcquire(String metric, long nanos, boolean success) {
+        Stats s = stats(metric);
+        s.attempts.increment();
+        s.acquireLatency.record(nanos);
+        if (!success) {
+            s.failures.increment();
+        }
+    }
+
+    public void recordRelease(String metric, long holdNanos, long ttlSeconds) {
+        Stats s = stats(metric);
+        s.holdTime.record(holdNanos);
+        if (holdNanos >= TimeUnit.SECONDS.toNanos(ttlSeconds)) {
+            s.expiredWhileHeld.increment();
+        }
+    }
+
+    public void recordCoalesced(String metric) {
+        stats(metric).coalesced.increment();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        stats.forEach((metric, s) -> result.put(metric, s.snapshot()));
+        return result;
+    }
+
+    // 锁名去掉最后一段（一般是用户 ID、店铺 ID），按前缀聚合，不然每个用户一条统计
+    public static String prefixOf(String name) {
+        int i = name.lastIndexOf(':');
+        return i > 0 ? name.substring(0, i) : name;
+    }
+
+    private Stats stats(String metric) {
+        Stats s = stats.get(metric);
+        return s != null ? s : stats.computeIfAbsent(metric, k -> new Stats());
+    }
+
+    private static final class Stats {
+        final LongAdder attempts = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        final LongAdder expiredWhileHeld = new LongAdder();
+        final Histogram acquireLatency = new Histogram();
+        final Histogram holdTime = new Histogram();
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("attempts", attempts.sum());
+            m.put("failures", failures.sum());
+            m.put("coalesced", coalesced.sum());
+            m.put("expiredWhileHeld", expiredWhileHeld.sum());
+            m.put("acquireLatency", acquireLatency.snapshot());
+            m.put("holdTime", holdTime.snapshot());
+            return m;
+        }
+    }
+
+    private static final class Histogram {
+        final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_MICROS.length + 1];
+        final LongAdder count = new LongAdder();
+        final LongAdder sumMicros = new LongAdder();
+        final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int i = 0;
+            while (i < BUCKET_BOUNDS_MICROS.length && micros > BUCKET_BOUNDS_MICROS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sumMicros.add(micros);
+            maxMicros.accumulate(micros);
+        }
+
+        // 分位数取所在桶的上界，是个偏大的估计
+        Map<String, Object> snapshot() {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("count", total);
+            m.put("meanMs", total == 0 ? 0 : sumMicros.sum() / 1000.0 / total);
+            m.put("maxMs", maxMicros.get() / 1000.0);
+            m.put("p50Ms", percentile(counts, total, 0.50));
+            m.put("p99Ms", percentile(counts, total, 0.99));
+            Map<String, Long> distribution = new LinkedHashMap<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    distribution.put(i < BUCKET_BOUNDS_MICROS.length
+                            ? "le" + BUCKET_BOUNDS_MICROS[i] / 1000.0 + "ms" : "inf", counts[i]);
+                }
+            }
+            m.put("buckets", distribution);
+            return m;
+        }
+
+        private double percentile(long[] counts, long total, double p) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return BUCKET_BOUNDS_MICROS[i] / 1000.0;
+                }
+            }
+            return maxMicros.get() / 1000.0;
+        }
+    }
+
+    /*
+    套了统计的锁：记下拿到锁的时间和过期时间，释放时算持有了多久
+    Redisson 可以重入，只在最外层拿到/释放时记
+     */
+    private static final class InstrumentedLock implements ILock {
+        private final Stats stats;
+        private final ILock lock;
+        private long acquiredAt;
+        private long ttlSeconds;
+        private int depth;
+
+        InstrumentedLock(Stats stats, ILock lock) {
+            this.stats = stats;
+            this.lock = lock;
+        }
+
+        @Override
+        public boolean tryLock(Long timeoutSec) {
+            long begin = System.nanoTime();
+            boolean success = false;
+            try {
+                success = lock.tryLock(timeoutSec);
+            } finally {
+                long now = System.nanoTime();
+                stats.attempts.increment();
+                stats.acquireLatency.record(now - begin);
+                if (!success) {
+                    stats.failures.increment();
+                } else if (depth++ == 0) {
+                    acquiredAt = now;
+                    ttlSeconds = timeoutSec;
+                }
+            }
+            return success;
+        }
+
+        @Override
+        public void unlock() {
+            try {
+                lock.unlock();
+            } finally {
+                if (depth > 0 && --depth == 0) {
+                    long held = System.nanoTime() - acquiredAt;
+                    stats.holdTime.record(held);
+                    if (held >= TimeUnit.SECONDS.toNanos(ttlSeconds)) {
+                        stats.expiredWhileHeld.increment();
+                    }
+                }
+            }
+        }
+    }
+}
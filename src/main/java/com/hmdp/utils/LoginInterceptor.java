@@ -4,7 +4,8 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+import javax.servlet.DispatcherType;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.Map;
@@ -13,7 +14,7 @@ import java.util.concurrent.TimeUnit;
 import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
 import static com.hmdp.utils.RedisConstants.LOGIN_USER_TTL;
 
-public class LoginInterceptor implements HandlerInterceptor {
+public class LoginInterceptor implements AsyncHandlerInterceptor {
 
     //这个类没有加注解，是我们自己new出来的，spring没有帮我们管理，因此需要我们自己手动注入这个类
     //用构造函数，谁用谁自己注入
@@ -26,6 +27,11 @@ public class LoginInterceptor implements HandlerInterceptor {
     public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
         //当前线程的每次请求会被拦截器拦截下来，判断之后放到ThreadLocal里面让controller获取
 
+        //异步接口（返回 CompletableFuture）结果出来以后会再派发一次，第一次已经校验过了，这次只是写响应
+        if(request.getDispatcherType() == DispatcherType.ASYNC){
+            return true;
+        }
+
         /*
         获取session
         HttpSession session = request.getSession();
@@ -62,4 +68,10 @@ public class LoginInterceptor implements HandlerInterceptor {
         //请求处理完毕后，拦截器清理ThreadLocal中的用户信息，防止内存泄漏和后续请求被错误地设置
         UserHolder.removeUser();
     }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        //异步接口开始以后 afterCompletion 不会在这个线程上调用，Tomcat 线程马上要去处理别的请求了，这里也要清理
+        UserHolder.removeUser();
+    }
 }
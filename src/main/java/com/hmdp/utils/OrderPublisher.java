@@ -0,0 +1,258 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.VoucherOrderBatch;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+订单消息的异步发送
+以前 seckillVoucher 在请求线程里直接 convertAndSend，每单都要等一次 broker 的网络往返，而且没带 CorrelationData，
+confirm 回来也对不上是哪条消息，失败了就丢了
+
+现在请求线程只把订单放进本地的发送队列就返回：
+  1. 每条消息分配一个 CorrelationData（id 就是订单号），登记到 outstanding 表里，表的大小有上限（信号量控制），
+     表满了就在请求线程里同步发，但还是登记到表里，后面的确认、重试都一样
+  2. 后台发送线程一次从队列里取一批，用 rabbitTemplate.invoke 在同一个 channel 上连续发出去
+  3. broker 的 confirm 通过 CorrelationData 的 future 回来：ack 了就从表里删掉；
+     nack 了、或者路由失败被退回了，丢给重试线程按退避时间重发，超过 max-attempts 次才放弃
+  4. 定时扫一遍表，confirm 迟迟不回来的（比如连接断了）也拿去重发
+重发可能导致同一个订单发两次，消费者靠唯一索引是幂等的，没关系
+ */
+@Slf4j
+@Component
+public class OrderPublisher {
+
+    private static final String EXCHANGE = "seckillOrder.direct";
+    private static final String ROUTING_KEY = "seckillOrder";
+    private static final String BATCH_ROUTING_KEY = "seckillOrder.batch";
+    // confirm 超过这个时间还没回来就当作丢了
+    private static final long CONFIRM_TIMEOUT_MILLIS = 30000L;
+
+    @Value("${hmdp.seckill.publisher.max-outstanding:10000}")
+    private int maxOutstanding;
+    @Value("${hmdp.seckill.publisher.batch-size:50}")
+    private int batchSize;
+    @Value("${hmdp.seckill.publisher.threads:2}")
+    private int threads;
+    @Value("${hmdp.seckill.publisher.max-attempts:5}")
+    private int maxAttempts;
+    // 表满的时候请求线程最多等多久
+    @Value("${hmdp.seckill.publisher.offer-timeout:50}")
+    private long offerTimeoutMillis;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+    @Resource
+    private OrderStatusTable orderStatusTable;
+
+    private final Map<String, Outstanding> outstanding = new ConcurrentHashMap<>();
+    private final BlockingQueue<Outstanding> sendQueue = new LinkedBlockingQueue<>();
+    private Semaphore permits;
+    private ExecutorService senders;
+    private final ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "order-publish-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final class Outstanding {
+        // CorrelationData 的 id：单个订单是订单号，多订单消息是第一个订单号
+        final String id;
+        final String routingKey;
+        final Object payload;
+        // 消息里包含的订单，彻底发不出去时把它们的状态都标成失败
+        final List<Long> orderIds;
+        volatile int attempts;
+        volatile long sentAt;
+        // 表满时同步发送的消息也登记在表里，但没拿到信号量，完成的时候不能 release
+        volatile boolean holdsPermit;
+
+        Outstanding(String id, String routingKey, Object payload, List<Long> orderIds) {
+            this.id = id;
+            this.routingKey = routingKey;
+            this.payload = payload;
+            this.orderIds = orderIds;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        permits = new Semaphore(maxOutstanding);
+        senders = Executors.newFixedThreadPool(threads, r -> new Thread(r, "order-publisher"));
+        for (int i = 0; i < threads; i++) {
+            senders.submit(this::sendLoop);
+        }
+    }
+
+    /*
+    请求线程调用：正常情况下只是入队，不碰网络
+    outstanding 表满了（broker 太慢或者挂了）等 offer-timeout 毫秒，还是满的就退回到在当前线程同步发送，
+    这时库存已经在 Redis 扣掉了，宁可慢一点也不能把订单丢了；
+    同步发的也照样登记到表里、挂 confirm 回调，nack、退回、超时都和正常的一样走重试，只是不占信号量
+     */
+    public void publish(VoucherOrder voucherOrder) {
+        publish(new Outstanding(voucherOrder.getId().toString(), ROUTING_KEY, voucherOrder,
+                Collections.singletonList(voucherOrder.getId())));
+    }
+
+    // 一次买多张券的多订单消息，走单独的路由键，由批量监听一次落库
+    public void publish(VoucherOrderBatch batch) {
+        List<Long> orderIds = new ArrayList<>(batch.getOrders().size());
+        batch.getOrders().forEach(order -> orderIds.add(order.getId()));
+        publish(new Outstanding(orderIds.get(0).toString(), BATCH_ROUTING_KEY, batch, orderIds));
+    }
+
+    private void publish(Outstanding entry) {
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            acquired = false;
+        }
+        if (!acquired) {
+            log.warn("待确认的订单消息太多，改为同步发送，订单ID：{}", entry.orderIds);
+            outstanding.put(entry.id, entry);
+            sendNow(entry);
+            return;
+        }
+        entry.holdsPermit = true;
+        outstanding.put(entry.id, entry);
+        sendQueue.add(entry);
+    }
+
+    private void sendNow(Outstanding entry) {
+        CorrelationData correlationData = new CorrelationData(entry.id);
+        entry.attempts++;
+        entry.sentAt = System.currentTimeMillis();
+        try {
+            rabbitTemplate.convertAndSend(EXCHANGE, entry.routingKey, entry.payload, correlationData);
+        } catch (RuntimeException e) {
+            // 发送本身就失败了（比如拿不到连接），和后台线程一样交给重试，不往请求线程抛
+            log.error("订单消息同步发送失败，订单ID：{}", entry.orderIds, e);
+            scheduleRetry(entry, e.getMessage());
+            return;
+        }
+        watchConfirm(entry, correlationData);
+    }
+
+    private void sendLoop() {
+        List<Outstanding> batch = new ArrayList<>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(sendQueue.take());
+                sendQueue.drainTo(batch, batchSize - 1);
+                sendBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // 整批发送失败（比如拿不到连接），每条都走重试
+                log.error("订单消息批量发送失败，本批数量：{}", batch.size(), e);
+                batch.forEach(entry -> scheduleRetry(entry, e.getMessage()));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    // invoke 里的所有发送共用同一个 channel，一批消息只借一次 channel
+    private void sendBatch(List<Outstanding> batch) {
+        List<CorrelationData> correlations = new ArrayList<>(batch.size());
+        rabbitTemplate.invoke(operations -> {
+            for (Outstanding entry : batch) {
+                CorrelationData correlationData = new CorrelationData(entry.id);
+                entry.attempts++;
+                entry.sentAt = System.currentTimeMillis();
+                operations.convertAndSend(EXCHANGE, entry.routingKey, entry.payload, correlationData);
+                correlations.add(correlationData);
+            }
+            return null;
+        });
+        for (int i = 0; i < batch.size(); i++) {
+            watchConfirm(batch.get(i), correlations.get(i));
+        }
+    }
+
+    private void watchConfirm(Outstanding entry, CorrelationData correlationData) {
+        correlationData.getFuture().addCallback(
+                confirm -> {
+                    if (confirm != null && confirm.isAck() && correlationData.getReturned() == null) {
+                        complete(entry);
+                    } else if (confirm != null && confirm.isAck()) {
+                        scheduleRetry(entry, "路由失败：" + correlationData.getReturned().getReplyText());
+                    } else {
+                        scheduleRetry(entry, confirm == null ? null : confirm.getReason());
+                    }
+                },
+                ex -> scheduleRetry(entry, ex.getMessage()));
+    }
+
+    private void complete(Outstanding entry) {
+        if (outstanding.remove(entry.id, entry) && entry.holdsPermit) {
+            permits.release();
+        }
+    }
+
+    private void scheduleRetry(Outstanding entry, String reason) {
+        if (!outstanding.containsKey(entry.id)) {
+            return;
+        }
+        if (entry.attempts >= maxAttempts) {
+            log.error("订单消息发送{}次仍失败，放弃，订单ID：{}，原因：{}", entry.attempts, entry.orderIds, reason);
+            entry.orderIds.forEach(orderStatusTable::markFailed);
+            complete(entry);
+            return;
+        }
+        // 退避：200ms、400ms、800ms……
+        long delay = 200L << Math.min(entry.attempts, 6);
+        log.warn("订单消息发送失败，{}ms后重试，订单ID：{}，原因：{}", delay, entry.orderIds, reason);
+        // 推迟 sentAt，避免超时扫描在等待重试期间又把它捞一遍
+        entry.sentAt = System.currentTimeMillis() + delay;
+        retryExecutor.schedule(() -> sendQueue.add(entry), delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Scheduled(fixedDelay = 5000)
+    public void retryTimedOut() {
+        long deadline = System.currentTimeMillis() - CONFIRM_TIMEOUT_MILLIS;
+        outstanding.values().forEach(entry -> {
+            if (entry.sentAt > 0 && entry.sentAt < deadline) {
+                scheduleRetry(entry, "confirm超时");
+            }
+        });
+    }
+
+    // 下线前把队列里还没发的尽量发完
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!sendQueue.isEmpty() && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        senders.shutdownNow();
+        retryExecutor.shutdownNow();
+        if (!outstanding.isEmpty()) {
+            log.error("还有{}条订单消息没有得到确认", outstanding.size());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
+
+/*
+异步下单的订单状态表
+秒杀接口返回订单号的时候订单还没进数据库，客户端拿着订单号轮询 /voucher-order/{id}/status 就知道后来成没成
+每个订单一个 order:status:{orderId}，值只有一个字符，过期时间 ORDER_STATUS_TTL 分钟，过期以后就只能查数据库了
+
+  0 处理中：seckill.lua 扣完库存时写入（租约模式在 seckill_quota.lua 里写，分片的券由 Java 写）
+  1 成功：消费者落库成功
+  2 失败：库存不足、重复下单、进了死信队列
+ */
+@Slf4j
+@Component
+public class OrderStatusTable {
+
+    public static final int PENDING = 0;
+    public static final int SUCCESS = 1;
+    public static final int FAILED = 2;
+
+    private static final DefaultRedisScript<Long> UPDATE_SCRIPT;
+    static {
+        UPDATE_SCRIPT = new DefaultRedisScript<>();
+        UPDATE_SCRIPT.setLocation(new ClassPathResource("order_status.lua"));
+        UPDATE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    public static long ttlSeconds() {
+        return TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL);
+    }
+
+    public void markPending(Long orderId) {
+        stringRedisTemplate.opsForValue().set(ORDER_STATUS_KEY + orderId, String.valueOf(PENDING),
+                ORDER_STATUS_TTL, TimeUnit.MINUTES);
+    }
+
+    public void markSuccess(Long orderId) {
+        update(orderId, SUCCESS);
+    }
+
+    public void markFailed(Long orderId) {
+        update(orderId, FAILED);
+    }
+
+    // 批量消费一批成功以后用管道一次发出去，不用每个订单一次往返
+    public void markSuccess(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        try {
+            RedisSerializer<String> serializer = stringRedisTemplate.getStringSerializer();
+            byte[] success = serializer.serialize(String.valueOf(SUCCESS));
+            byte[] ttl = serializer.serialize(String.valueOf(ttlSeconds()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long orderId : orderIds) {
+                    connection.scriptingCommands().evalSha(UPDATE_SCRIPT.getSha1(),
+                            ReturnType.INTEGER, 0,
+                            orderId.toString().getBytes(StandardCharsets.UTF_8), success, ttl);
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            // 脚本还没加载过（NOSCRIPT）或者连接有问题，退回逐条更新
+            orderIds.forEach(this::markSuccess);
+        }
+    }
+
+    // 返回 null 表示没有记录（订单号不对或者已经过期）
+    public Integer get(Long orderId) {
+        String status = stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY + orderId);
+        return status == null ? null : Integer.valueOf(status);
+    }
+
+    private void update(Long orderId, int status) {
+        try {
+            stringRedisTemplate.execute(UPDATE_SCRIPT, Collections.emptyList(),
+                    orderId.toString(), String.valueOf(status), String.valueOf(ttlSeconds()));
+        } catch (Exception e) {
+            // 状态表只是给客户端轮询用的，写失败不能影响订单本身
+            log.error("更新订单状态失败，订单ID：{}，状态：{}", orderId, status, e);
+        }
+    }
+}
@@ -11,11 +11,39 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOPTYPE_KEY = "cache:shop-type:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_SHOP_VOUCHERS_KEY = "cache:shop-vouchers:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String LOCK_BLOOM_REBUILD_KEY = "lock:bloom:rebuild:";
+
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String SECKILL_SOLD_OUT_KEY = "seckill:soldout:";
+    public static final String SECKILL_SHOP_DAILY_KEY = "seckill:shop:daily:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_NODE_KEY = "seckill:lease:node:";
+    public static final String SECKILL_LEASE_VOUCHERS_KEY = "seckill:lease:vouchers";
+    public static final Long SECKILL_LEASE_NODE_TTL = 30L;
+    public static final String SECKILL_LOTTERY_KEY = "seckill:lottery:";
+    public static final String SECKILL_LOTTERY_RESULT_KEY = "seckill:lottery:result:";
+    public static final String LOCK_LOTTERY_DRAW_KEY = "lock:lottery:draw:";
+    public static final Long LOCK_LOTTERY_DRAW_TTL = 300L;
+    public static final Long SECKILL_LOTTERY_RESULT_TTL = 7L;
+    // 报名截止以后再等多少秒才开奖，见 LotteryServiceImpl.drawFinished
+    public static final Long LOTTERY_DRAW_DELAY = 30L;
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 30L;
+    public static final String STREAM_ORDERS_KEY = "stream.orders";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
+    public static final String SNOWFLAKE_WORKER_KEY = "snowflake:worker:";
+    public static final Long SNOWFLAKE_WORKER_TTL = 30L;
+
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
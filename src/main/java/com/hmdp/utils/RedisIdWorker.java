@@ -1,38 +1,202 @@
 package com.hmdp.utils;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Component
-public class RedisIdWorker {
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "redis", matchIfMissing = true)
+public class RedisIdWorker implements IIdWorker {
     //开始时间戳
     private static final long BEGIN_TIMESTAMP = 1735689600L;
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    //DateTimeFormatter 是线程安全的，没必要每次都 new 一个
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    //原来的时间戳是用本地时间按 UTC 换算的秒数，这里用时区偏移算出同样的值，避免每次 new LocalDateTime
+    private static final TimeZone ZONE = TimeZone.getDefault();
 
     private StringRedisTemplate stringRedisTemplate;
+    //每次从 Redis 租多少个序列号，<= 1 表示退回每次 INCR 的老逻辑
+    private final int segmentSize;
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+    //预取下一段只需要一个后台线程
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "id-segment-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate){
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.segment-size:1000}") int segmentSize){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.segmentSize = segmentSize;
     }
 
+    @Override
     public long nextId(String keyPre){
+        if(segmentSize <= 1){
+            return nextIdByIncr(keyPre);
+        }
+        //生成时间戳（31位）
+        long nowSecond = currentSecond();
+        long timeStamp = nowSecond - BEGIN_TIMESTAMP;
+        long day = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+
+        //生成序列号（32位），从本地租到的号段里取
+        SegmentBuffer buffer = buffers.get(keyPre);
+        if(buffer == null){
+            buffer = buffers.computeIfAbsent(keyPre, SegmentBuffer::new);
+        }
+        return timeStamp << COUNT_BITS | buffer.next(day);
+    }
+
+    //老逻辑下一次要多个 ID 时用一条 INCRBY 拿一段，而不是 count 次 INCR
+    @Override
+    public long[] nextIds(String keyPre, int count){
+        if(segmentSize > 1){
+            return IIdWorker.super.nextIds(keyPre, count);
+        }
+        LocalDateTime now = LocalDateTime.now();
+        long timeStamp = now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+        Long max = stringRedisTemplate.opsForValue()
+                .increment("icr:" + keyPre + ":" + now.format(DATE_FORMATTER), count);
+        if(max == null){
+            throw new IllegalStateException("获取ID失败，keyPre：" + keyPre);
+        }
+        long[] ids = new long[count];
+        for(int i = 0; i < count; i++){
+            ids[i] = timeStamp << COUNT_BITS | (max - count + 1 + i);
+        }
+        return ids;
+    }
+
+    //老逻辑：每个 ID 一次 INCR
+    private long nextIdByIncr(String keyPre){
         //生成时间戳（31位）
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timeStamp = nowSecond - BEGIN_TIMESTAMP;
 
         //生成序列号（32位）
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         long count = stringRedisTemplate.opsForValue()
                 .increment("icr:" + keyPre + ":" + date);
 
         return timeStamp << COUNT_BITS | count;
     }
 
+    private static long currentSecond(){
+        long millis = System.currentTimeMillis();
+        return Math.floorDiv(millis + ZONE.getOffset(millis), 1000L);
+    }
+
+    /*
+    号段，对应 Redis 里 icr:{keyPre}:{date} 上一次 INCRBY 拿到的 [start, max]
+    和原来一样按天一个 key，序列号每天从 1 开始，所以号段也要记住自己属于哪一天
+     */
+    private static final class Segment {
+        final long day;
+        final long max;
+        //号段用到这里就开始预取下一段
+        final long prefetchAt;
+        final AtomicLong cursor;
+
+        Segment(long day, long start, long max){
+            this.day = day;
+            this.max = max;
+            this.prefetchAt = start + (max - start + 1) / 5;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /*
+    双缓冲：current 正在用，next 是提前取好的下一段
+    current 用掉 20% 时后台去取 next，current 用完直接切到 next，正常情况下请求线程不会等 Redis
+     */
+    private final class SegmentBuffer {
+        private final String keyPre;
+        private volatile Segment current = new Segment(-1, 1, 0);
+        private volatile Segment next;
+        private final AtomicBoolean prefetching = new AtomicBoolean();
+
+        SegmentBuffer(String keyPre){
+            this.keyPre = keyPre;
+        }
+
+        long next(long day){
+            while(true){
+                Segment segment = current;
+                if(segment.day == day){
+                    long value = segment.cursor.getAndIncrement();
+                    if(value <= segment.max){
+                        if(value == segment.prefetchAt){
+                            prefetch(day);
+                        }
+                        return value;
+                    }
+                }
+                switchSegment(segment, day);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, long day){
+            if(current != exhausted){
+                //别的线程已经切过了
+                return;
+            }
+            Segment prefetched = next;
+            next = null;
+            if(prefetched != null && prefetched.day == day){
+                current = prefetched;
+            }else{
+                //没预取到（或者跨天了），只能同步去 Redis 取
+                current = fetch(day);
+            }
+        }
+
+        private void prefetch(long day){
+            if(!prefetching.compareAndSet(false, true)){
+                return;
+            }
+            prefetchExecutor.execute(() -> {
+                try{
+                    Segment segment = fetch(day);
+                    synchronized(this){
+                        if(next == null){
+                            next = segment;
+                        }
+                    }
+                }finally{
+                    prefetching.set(false);
+                }
+            });
+        }
+
+        private Segment fetch(long day){
+            String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+            Long max = stringRedisTemplate.opsForValue()
+                    .increment("icr:" + keyPre + ":" + date, segmentSize);
+            if(max == null){
+                throw new IllegalStateException("获取ID号段失败，keyPre：" + keyPre);
+            }
+            return new Segment(day, max - segmentSize + 1, max);
+        }
+    }
+
     public static void main(String[] args){
         LocalDateTime time = LocalDateTime.of(2025, 1, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.List;
+
+/*
+返回整数数组的 lua 脚本
+Spring 把 Lua 的整数数组转成 List<Long>，但 setResultType 只能传 List.class，带不了泛型，
+以前都是声明成 DefaultRedisScript<List>，每个调用的地方都有一次 unchecked 转换；这里统一转一次
+
+部署要求：下面这些脚本是传前缀（或者干脆不传 KEYS）、在脚本里自己拼 key 的，
+Cluster 下脚本碰到没在 KEYS 里声明的 key 会报错或者打到别的槽，所以只能跑在单机或主从的 Redis 上：
+  seckill_batch、seckill_quota（stream 的 key 也是放在 ARGV 里传的）、stock_lease、stock_return、
+  stock_reclaim、order_status、lottery_enter、waiting_room
+seckill.lua 和 seckill_shard_undo.lua 的 key 全部通过 KEYS 传，分片的券每次只碰一个 hash tag 的槽；
+不分片的券 KEYS 跨了几个槽，一样只能跑在单机/主从上
+ */
+public final class RedisScripts {
+
+    private RedisScripts() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static DefaultRedisScript<List<Long>> longListScript(String location) {
+        DefaultRedisScript<List<Long>> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource(location));
+        script.setResultType((Class<List<Long>>) (Class<?>) List.class);
+        return script;
+    }
+}
@@ -0,0 +1,173 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.AbstractRedisClient;
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionStateListener;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.push.PushMessage;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.protocol.ProtocolVersion;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Redis 6 客户端缓存的失效通知（CLIENT TRACKING ... BCAST PREFIX cache:shop: ...）
+开了以后 Redis 里 cache:xxx: 下面的 key 只要被改、被删、过期、被淘汰，所有节点都会收到一条 invalidate 推送，
+TwoLevelCache 收到就删本地的 Caffeine，不管这个写是不是走的 evict，也不用 MQ
+
+连接从 Spring 的 LettuceConnectionFactory 底层的 RedisClient 上单独开一条（不占连接池），
+SSL、密码、库号、哨兵这些配置都和应用其他地方一样，哨兵切主以后重连也会连到新的主节点
+推送只有 RESP3 才能和普通命令走同一条连接，客户端配成了 RESP2 就用不了
+Redis Cluster 下每个主节点要各开一条 tracking 连接、拓扑变了还要跟着变，这里不支持，退回 MQ 广播
+BCAST 模式下 Redis 不用记每个客户端读过哪些 key，只按前缀广播，代价是前缀下所有写都会推过来（包括自己回填缓存的写，
+TwoLevelCache 按 key 记墓碑处理）
+
+重连以后 Redis 那边的 tracking 状态没了，要重新开；断开期间的失效通知收不到，所以断开时本地缓存全部清掉，
+重新开好 tracking 之前 TwoLevelCache 先不用本地缓存
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.cache.tracking.enabled", havingValue = "true")
+public class RedisTrackingInvalidator {
+
+    private static final String INVALIDATE = "invalidate";
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+    @Resource
+    private TwoLevelCache twoLevelCache;
+
+    // 和 Spring 共用的客户端，不归这里关
+    private RedisClient client;
+    private volatile StatefulRedisConnection<String, String> connection;
+    private TrackingArgs trackingArgs;
+    private final RedisConnectionStateListener stateListener = new RedisConnectionStateListener() {
+        @Override
+        public void onRedisConnected(RedisChannelHandler<?, ?> handler, SocketAddress address) {
+            StatefulRedisConnection<String, String> current = connection;
+            // 共用的客户端上所有连接的事件都会到这里，只管自己这条；第一次连上在 start() 里同步开 tracking，这里只管重连
+            if (current != null && current == handler) {
+                enableTrackingAsync(current);
+            }
+        }
+
+        @Override
+        public void onRedisDisconnected(RedisChannelHandler<?, ?> handler) {
+            if (handler == connection) {
+                log.warn("失效通知连接断开，本地缓存先不用");
+                twoLevelCache.setTrackingConnected(false);
+            }
+        }
+
+        @Override
+        public void onRedisExceptionCaught(RedisChannelHandler<?, ?> handler, Throwable cause) {
+            if (handler == connection) {
+                log.error("失效通知连接异常", cause);
+            }
+        }
+    };
+
+    @PostConstruct
+    public void start() {
+        String[] prefixes = twoLevelCache.trackedPrefixes();
+        if (prefixes.length == 0) {
+            // BCAST 不带前缀会把所有 key 的写都推过来
+            log.warn("没有配置缓存区域，不开启失效通知");
+            twoLevelCache.disableTracking();
+            return;
+        }
+        trackingArgs = TrackingArgs.Builder.enabled().bcast().prefixes(prefixes);
+
+        if (!(redisConnectionFactory instanceof LettuceConnectionFactory)) {
+            log.error("失效通知只支持Lettuce，退回MQ广播");
+            twoLevelCache.disableTracking();
+            return;
+        }
+        AbstractRedisClient nativeClient = ((LettuceConnectionFactory) redisConnectionFactory).getRequiredNativeClient();
+        if (!(nativeClient instanceof RedisClient)) {
+            log.error("Redis Cluster 下不支持失效通知，退回MQ广播");
+            twoLevelCache.disableTracking();
+            return;
+        }
+        if (nativeClient.getOptions().getProtocolVersion() != ProtocolVersion.RESP3) {
+            log.error("Redis客户端没有用RESP3，收不到失效通知，退回MQ广播");
+            twoLevelCache.disableTracking();
+            return;
+        }
+        client = (RedisClient) nativeClient;
+        client.addListener(stateListener);
+
+        StatefulRedisConnection<String, String> conn = client.connect();
+        conn.addListener(this::onPush);
+        try {
+            conn.sync().clientTracking(trackingArgs);
+        } catch (Exception e) {
+            // Redis 6 以下没有 CLIENT TRACKING，握手时降到 RESP2 也会走到这里
+            log.error("开启失效通知失败，退回MQ广播", e);
+            client.removeListener(stateListener);
+            conn.close();
+            twoLevelCache.disableTracking();
+            return;
+        }
+        connection = conn;
+        twoLevelCache.setTrackingConnected(true);
+        log.info("已开启Redis客户端缓存失效通知，前缀：{}", Arrays.toString(prefixes));
+    }
+
+    // 在 Lettuce 的 IO 线程里回调，不能用同步命令
+    private void enableTrackingAsync(StatefulRedisConnection<String, String> conn) {
+        conn.async().clientTracking(trackingArgs).whenComplete((ok, e) -> {
+            if (e != null) {
+                log.error("重连后开启失效通知失败，本地缓存继续停用", e);
+                return;
+            }
+            // 断开期间漏掉的通知没法补，再清一次，防止断开前后有线程回填了旧值
+            twoLevelCache.invalidateAllLocal();
+            twoLevelCache.setTrackingConnected(true);
+            log.info("重连后已重新开启失效通知");
+        });
+    }
+
+    /*
+    推送格式：["invalidate", [key1, key2, ...]]
+    第二个元素是 null 表示 FLUSHALL/FLUSHDB，整个清掉
+     */
+    private void onPush(PushMessage message) {
+        if (!INVALIDATE.equals(message.getType())) {
+            return;
+        }
+        List<Object> content = message.getContent(StringCodec.UTF8::decodeKey);
+        Object keys = content.size() > 1 ? content.get(1) : null;
+        if (!(keys instanceof List)) {
+            twoLevelCache.invalidateAllLocal();
+            return;
+        }
+        for (Object key : (List<?>) keys) {
+            twoLevelCache.invalidateLocal(String.valueOf(key));
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        StatefulRedisConnection<String, String> conn = connection;
+        connection = null;
+        if (conn == null) {
+            return;
+        }
+        twoLevelCache.setTrackingConnected(false);
+        client.removeListener(stateListener);
+        conn.close();
+    }
+}
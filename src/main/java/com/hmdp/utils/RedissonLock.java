@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import org.redisson.api.RLock;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Redisson 锁套一层 ILock，和 SimpleRedisLock 换着用
+tryLock 不等待，拿不到马上返回 false，timeoutSec 是锁的过期时间，和 SimpleRedisLock 的语义一样
+ */
+public class RedissonLock implements ILock {
+
+    private final RLock lock;
+
+    public RedissonLock(RLock lock) {
+        this.lock = lock;
+    }
+
+    @Override
+    public boolean tryLock(Long timeoutSec) {
+        try {
+            return lock.tryLock(0, timeoutSec, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @Override
+    public void unlock() {
+        // 锁已经过期被别人拿走时 Redisson 会抛异常，这里和 unlock.lua 一样，不是自己的就不删
+        if (lock.isHeldByCurrentThread()) {
+            lock.unlock();
+        }
+    }
+}
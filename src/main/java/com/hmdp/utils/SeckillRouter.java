@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+秒杀券的 key 路由
+不分片的券：seckill:voucher:{voucherId}、seckill:stock:{voucherId}、seckill:order:{voucherId}，和以前一样
+分片的券：每个分片一个 hash tag {voucherId:i}，这个分片的预热信息副本、库存、买家记录都带同一个 tag
+  seckill:voucher:{voucherId:i}  预热信息副本（begin/end/status/limit/mode/buyers...）
+  seckill:stock:{voucherId:i}    这个分片的库存
+  seckill:order:{voucherId:i}    买家记录，counter/bits/bloom 这些派生 key 在后面加后缀，tag 不变
+  同一个分片的 key 在同一个槽里，Redis Cluster 下不同分片会落到不同节点，一次抢购只在一个分片的槽里跑一次脚本
+用户固定落在自己的分片上（homeShard），限购记录只在这一个分片里查和写
+分片数、店铺 ID 预热以后就不会再变，每个节点每张券只读一次
+ */
+@Component
+public class SeckillRouter {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Map<Long, Route> routes = new ConcurrentHashMap<>();
+
+    public Route route(Long voucherId) {
+        Route route = routes.get(voucherId);
+        if (route != null) {
+            return route;
+        }
+        List<Object> meta = stringRedisTemplate.opsForHash().multiGet(
+                SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("shards", "shopId", "shopDailyLimit"));
+        route = new Route(meta.get(0) == null ? 1 : Math.max(Integer.parseInt(meta.get(0).toString()), 1),
+                meta.get(1) == null ? "" : meta.get(1).toString(),
+                meta.get(2) == null ? 0 : Integer.parseInt(meta.get(2).toString()));
+        // 还没预热的券不缓存，等预热好了再读
+        if (meta.get(0) != null) {
+            routes.putIfAbsent(voucherId, route);
+        }
+        return route;
+    }
+
+    public static String shardTag(Long voucherId, int shard) {
+        return "{" + voucherId + ":" + shard + "}";
+    }
+
+    public static String shardMetaKey(Long voucherId, int shard) {
+        return SECKILL_VOUCHER_KEY + shardTag(voucherId, shard);
+    }
+
+    public static String shardStockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + shardTag(voucherId, shard);
+    }
+
+    public static String shardOrderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + shardTag(voucherId, shard);
+    }
+
+    /*
+    买家记录的派生 key：counter（按 userId / 100 分组的计数哈希）、bits（位图）、bloom（布隆过滤器）
+    都是在买家记录 key 后面加后缀，hash tag 不变，和买家记录在同一个槽；seckill.lua 要通过 KEYS 传进去
+     */
+    public static List<String> buyerKeys(String orderKey, Long userId) {
+        return Arrays.asList(orderKey + ":" + Math.floorDiv(userId, 100L), orderKey + ":bits", orderKey + ":bloom");
+    }
+
+    // seckill_batch.lua 里按同样的算法找用户的分片
+    public static int homeShard(Long userId, int shards) {
+        return (int) Math.floorMod(userId, (long) shards);
+    }
+
+    public static String shopDailyKey(String shopId, String today) {
+        return SECKILL_SHOP_DAILY_KEY + shopId + ":" + today;
+    }
+
+    public static final class Route {
+        public final int shards;
+        public final String shopId;
+        public final int shopDailyLimit;
+
+        Route(int shards, String shopId, int shopDailyLimit) {
+            this.shards = shards;
+            this.shopId = shopId;
+            this.shopDailyLimit = shopDailyLimit;
+        }
+
+        public boolean isSharded() {
+            return shards > 1;
+        }
+    }
+}
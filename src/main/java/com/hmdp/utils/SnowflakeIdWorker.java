@@ -0,0 +1,196 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SNOWFLAKE_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.SNOWFLAKE_WORKER_TTL;
+
+/*
+雪花算法 ID，生成时完全不访问 Redis
+  1 位符号 | 41 位毫秒时间戳 | 10 位 workerId | 12 位序列号
+
+workerId 在启动时从 Redis 租一个（snowflake:worker:{0..1023}，SET NX EX），之后定时续期，下线时释放
+续期用自己的线程，不走 @Scheduled：Spring 默认的调度器只有一个线程，布隆过滤器重建、开奖这些长任务占着它的时候
+心跳会被拖过 TTL，租约一过期就发不出号了
+Redis 只在启动和心跳时用到，下单生成 ID 不再有网络调用
+
+起始时间比 RedisIdWorker 早一年（2024-01-01），这样切换过来以后生成的 ID 一定比之前 Redis 模式生成的大，
+两种 ID 可以共存在 tb_voucher_order 里不会撞主键
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.id.mode", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IIdWorker {
+
+    private static final long BEGIN_TIMESTAMP_MILLIS = 1704067200000L;
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    // 心跳间隔取租约 TTL（30 秒）的三分之一，中间丢一两次心跳也不会过期
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 10000L;
+    // 时钟回拨超过这个值才打日志，小的回拨（NTP 微调）很常见
+    private static final long ROLLBACK_WARN_MILLIS = 1000L;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    // 租约的值，用来在续期/释放时确认 key 还是自己的
+    private final String instanceId = UUID.randomUUID().toString();
+    private volatile long workerId = -1;
+    // 最近一次成功租到/续期的时间，连不上 Redis 续不了期时靠它判断租约是不是已经过期了
+    private volatile long leasedAt;
+    /*
+    把“时间戳 + 序列号”合在一个 long 里做 CAS：state = timestamp << 12 | sequence
+    下一个值取 max(state + 1, now << 12)：
+      同一毫秒内 state + 1 就是序列号加一，序列号用满会自然进位到下一毫秒（相当于借用未来的时间）
+      时钟回拨时 now 变小，max 保证 state 永远不倒退，ID 不会重复，也不用停下来等时钟追上
+     */
+    private final AtomicLong state = new AtomicLong();
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "snowflake-heartbeat");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public SnowflakeIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    // keyPre 只是为了和 RedisIdWorker 保持同一个入口，雪花 ID 本身全局唯一，不需要按业务分
+    @Override
+    public long nextId(String keyPre) {
+        long worker = workerId;
+        long current = System.currentTimeMillis();
+        if (worker < 0 || current - leasedAt >= SNOWFLAKE_WORKER_TTL * 1000) {
+            throw new IllegalStateException("雪花算法workerId租约已失效，暂时无法生成ID");
+        }
+        long now = current - BEGIN_TIMESTAMP_MILLIS;
+        long next;
+        while (true) {
+            long last = state.get();
+            next = Math.max(last + 1, now << SEQUENCE_BITS);
+            if (state.compareAndSet(last, next)) {
+                break;
+            }
+        }
+        long timestamp = next >>> SEQUENCE_BITS;
+        if (timestamp - now > ROLLBACK_WARN_MILLIS) {
+            log.warn("检测到时钟回拨，雪花ID时间戳领先系统时间{}ms", timestamp - now);
+        }
+        return timestamp << (WORKER_BITS + SEQUENCE_BITS) | worker << SEQUENCE_BITS | (next & SEQUENCE_MASK);
+    }
+
+    // 解析 ID 里的时间和 workerId，排查问题用
+    public static IdInfo decode(long id) {
+        long timestamp = (id >>> (WORKER_BITS + SEQUENCE_BITS)) + BEGIN_TIMESTAMP_MILLIS;
+        long worker = (id >>> SEQUENCE_BITS) & MAX_WORKER_ID;
+        long sequence = id & SEQUENCE_MASK;
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(timestamp), ZoneId.systemDefault());
+        return new IdInfo(time, worker, sequence);
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class IdInfo {
+        private LocalDateTime time;
+        private long workerId;
+        private long sequence;
+    }
+
+    @PostConstruct
+    public void init() {
+        state.set((System.currentTimeMillis() - BEGIN_TIMESTAMP_MILLIS) << SEQUENCE_BITS);
+        if (!acquireWorkerId()) {
+            throw new IllegalStateException("没有可用的雪花算法workerId，1024个都被占用了");
+        }
+        heartbeatExecutor.scheduleWithFixedDelay(this::heartbeat,
+                HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // 从随机位置开始找一个空闲的 workerId，避免所有节点同时从 0 开始抢
+    private boolean acquireWorkerId() {
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long candidate = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(
+                    SNOWFLAKE_WORKER_KEY + candidate, instanceId, SNOWFLAKE_WORKER_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                leasedAt = System.currentTimeMillis();
+                workerId = candidate;
+                log.info("雪花算法租到workerId：{}", candidate);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 异常必须在这里接住，ScheduledExecutorService 的任务抛出异常以后就不会再执行了
+    private void heartbeat() {
+        try {
+            renew();
+        } catch (Exception e) {
+            log.error("雪花算法workerId续期失败", e);
+        }
+    }
+
+    private void renew() {
+        long worker = workerId;
+        if (worker >= 0) {
+            long renewAt = System.currentTimeMillis();
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(SNOWFLAKE_WORKER_KEY + worker),
+                    instanceId, SNOWFLAKE_WORKER_TTL.toString());
+            if (renewed != null && renewed == 1) {
+                leasedAt = renewAt;
+                return;
+            }
+            /*
+            续期失败说明租约已经过期（比如长时间 GC 或者和 Redis 断开），这个 workerId 可能已经被别的节点拿走了
+            必须马上停止用它发号，再重新租一个
+             */
+            log.error("雪花算法workerId租约丢失：{}，重新申请", worker);
+            workerId = -1;
+        }
+        acquireWorkerId();
+    }
+
+    @PreDestroy
+    public void release() {
+        heartbeatExecutor.shutdownNow();
+        long worker = workerId;
+        workerId = -1;
+        if (worker >= 0) {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Collections.singletonList(SNOWFLAKE_WORKER_KEY + worker), instanceId);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.ExchangeTypes;
+import org.springframework.amqp.rabbit.annotation.Exchange;
+import org.springframework.amqp.rabbit.annotation.Queue;
+import org.springframework.amqp.rabbit.annotation.QueueBinding;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/*
+JVM 内的售罄闸门
+一张券卖完以后，后面还会有海量请求进来，每个都跑一次 seckill.lua 只为了拿回一个 1
+所以第一次发现卖完时在本地记一个标记，并通过 clearMessage.fanout 广播给其他节点，之后的请求在本地就直接拒绝
+
+广播的消息沿用这个交换机“传一个 key”的格式：
+  seckill:soldout:{voucherId}  表示这张券卖完了
+  seckill:stock:{voucherId}    表示这张券的库存被重新写过，售罄标记作废
+ */
+@Slf4j
+@Component
+public class SoldOutGate {
+
+    private static final String CLEAR_MESSAGE_EXCHANGE = "clearMessage.fanout";
+
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    public void markSoldOut(Long voucherId) {
+        // 只有第一次发现的时候广播，避免同一时刻卖完后的一大批请求各广播一次
+        if (soldOut.add(voucherId)) {
+            broadcast(SECKILL_SOLD_OUT_KEY + voucherId);
+        }
+    }
+
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        broadcast(SECKILL_STOCK_KEY + voucherId);
+    }
+
+    private void broadcast(String key) {
+        try {
+            rabbitTemplate.convertAndSend(CLEAR_MESSAGE_EXCHANGE, "", key);
+        } catch (Exception e) {
+            // 广播失败不影响正确性，其他节点最多多跑几次 lua 自己发现卖完
+            log.error("售罄标记广播失败，key：{}", key, e);
+        }
+    }
+
+    /*
+    每个节点用自己的匿名队列绑定 fanout 交换机（不写队列名就是 spring 生成的独占、自动删除的队列）
+    如果所有节点共用一个具名队列，一条消息只会被其中一个节点消费，起不到广播的作用
+     */
+    @RabbitListener(bindings = @QueueBinding(
+            value = @Queue,
+            exchange = @Exchange(name = CLEAR_MESSAGE_EXCHANGE, type = ExchangeTypes.FANOUT)
+    ))
+    public void onClearMessage(String key) {
+        if (key == null) {
+            return;
+        }
+        if (key.startsWith(SECKILL_SOLD_OUT_KEY)) {
+            soldOut.add(parseVoucherId(key, SECKILL_SOLD_OUT_KEY));
+        } else if (key.startsWith(SECKILL_STOCK_KEY)) {
+            soldOut.remove(parseVoucherId(key, SECKILL_STOCK_KEY));
+        }
+        // 其他 key 是给 Caffeine 用的，这里不管
+    }
+
+    private Long parseVoucherId(String key, String prefix) {
+        return Long.valueOf(key.substring(prefix.length()));
+    }
+}
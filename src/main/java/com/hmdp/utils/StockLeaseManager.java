@@ -0,0 +1,475 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_NODE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_NODE_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_LEASE_VOUCHERS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/*
+本地库存租约
+每个节点一次从 Redis 租走一批库存（stock_lease.lua，一次调用），之后在本地用 AtomicInteger 扣减
+本地剩余低于水位线时后台线程再去租一批，卖完/活动结束/节点下线时把没卖完的还回去（stock_return.lua）
+
+限购（一人一单/每人 N 张/店铺每日限购）仍然放在 Redis 里做（seckill_quota.lua），
+因为同一个用户的请求可能落到任何一个节点上，只有全局的记录才能保证不超
+限购检查不是一单一次：本节点同一时刻在等的请求攒成一批（最多 quota-batch-size 个），一批只跑一次脚本，
+一个后台线程串行地发，前一批在路上的时候新来的请求都攒进下一批，并发越高一批越大
+库存相关的调用从每单 1 次变成了每 lease-size 单 1 次
+
+节点挂了租约不会丢：
+  租到的数量记在 Redis 的租约账本 seckill:lease:{voucherId}（节点 ID -> 还没卖出去的数量），每卖一张在限购脚本里扣一
+  每个节点有一个存活标记 seckill:lease:node:{nodeId}，SECKILL_LEASE_NODE_TTL 秒过期，后台线程按三分之一的间隔续期
+  所有节点都会定时跑 stock_reclaim.lua，存活标记已经过期的节点，账上的数量还回库存
+  节点其实没挂、只是卡住了，账本已经被收回的话限购脚本返回 9，本地剩下的作废，不会超卖
+续期和回收用自己的线程，不和 @Scheduled 的其他任务抢线程
+
+上下架状态和时间窗口：seckill_quota.lua 每单都按 Redis 里的预热信息和 Redis 的时间判断，
+本地缓存的只是用来提前挡掉明显不行的请求，refreshLeases 定时和 Redis 对齐
+ */
+@Slf4j
+@Component
+public class StockLeaseManager {
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+    private static final DefaultRedisScript<Long> RECLAIM_SCRIPT;
+    private static final DefaultRedisScript<List<Long>> QUOTA_SCRIPT;
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("stock_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("stock_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+        RECLAIM_SCRIPT = new DefaultRedisScript<>();
+        RECLAIM_SCRIPT.setLocation(new ClassPathResource("stock_reclaim.lua"));
+        RECLAIM_SCRIPT.setResultType(Long.class);
+        QUOTA_SCRIPT = RedisScripts.longListScript("seckill_quota.lua");
+    }
+    // 本地租约判定为卖完以后，隔多久再去 Redis 确认一次（别的节点可能还回了库存）
+    private static final long SOLD_OUT_RECHECK_MILLIS = 1000L;
+    // seckill_quota.lua 的返回码：本节点的租约已经被收回
+    private static final long LEASE_REVOKED = 9L;
+    // 等一批限购检查的结果最多等多久
+    private static final long QUOTA_TIMEOUT_MILLIS = 5000L;
+    private static final long RECLAIM_INTERVAL_MILLIS = 10000L;
+    // 本地时钟和 Redis 的时间最多差多少，本地只挡掉超出这个误差的请求
+    private static final long CLOCK_SKEW_MILLIS = 5000L;
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.seckill.lease.size:50}")
+    private int leaseSize;
+    @Value("${hmdp.seckill.lease.low-watermark:10}")
+    private int lowWatermark;
+    @Value("${hmdp.seckill.lease.quota-batch-size:64}")
+    private int quotaBatchSize;
+    @Value("#{'${hmdp.seckill.order-channel:rabbit}' == 'stream'}")
+    private boolean useStream;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+    // 租约账本里用的节点 ID
+    private final String nodeId = UUID.randomUUID().toString();
+    private final BlockingQueue<QuotaRequest> quotaQueue = new LinkedBlockingQueue<>();
+    private Thread quotaFlusher;
+    private ScheduledExecutorService heartbeatExecutor;
+    // 后台续租只用一个线程，续租本身就是低频操作
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "stock-lease-refill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        quotaFlusher = new Thread(this::flushQuotaLoop, "stock-lease-quota");
+        quotaFlusher.setDaemon(true);
+        quotaFlusher.start();
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stock-lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long renewMillis = TimeUnit.SECONDS.toMillis(SECKILL_LEASE_NODE_TTL) / 3;
+        heartbeatExecutor.scheduleWithFixedDelay(this::renewNode, 0, renewMillis, TimeUnit.MILLISECONDS);
+        heartbeatExecutor.scheduleWithFixedDelay(this::reclaimDeadNodes,
+                RECLAIM_INTERVAL_MILLIS, RECLAIM_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+    返回值和 seckill.lua 保持一致：{code, seq}
+      code：0 成功，1 库存不足，2 超过每人限购，3 未开始，4 已结束，5 券不存在/未预热/已下架，6 超过本店每日限购，7 抽签发售
+      seq：成功时是这个用户第几次买这张券
+     */
+    public List<Long> tryAcquire(Long voucherId, Long userId, Long orderId, String today) {
+        Lease lease = leases.get(voucherId);
+        if (lease == null) {
+            lease = openLease(voucherId);
+            if (lease == null) {
+                // 还没预热的券不缓存，等预热好了下次请求再建租约
+                return Arrays.asList(5L, 0L);
+            }
+            Lease existed = leases.putIfAbsent(voucherId, lease);
+            if (existed != null) {
+                lease = existed;
+            }
+        }
+        if (lease.lottery) {
+            return Arrays.asList(7L, 0L);
+        }
+        // 本地时钟只用来挡掉明显不在时间窗口里的请求（留出节点之间的时钟误差），准确的判断在 seckill_quota.lua 里用 Redis 的时间
+        long now = System.currentTimeMillis();
+        if (now < lease.beginMillis - CLOCK_SKEW_MILLIS) {
+            return Arrays.asList(3L, 0L);
+        }
+        if (now > lease.endMillis + CLOCK_SKEW_MILLIS) {
+            return Arrays.asList(4L, 0L);
+        }
+        if (lease.isSoldOut() || !lease.take()) {
+            return Arrays.asList(1L, 0L);
+        }
+
+        /*
+        先在本地扣库存，再去 Redis 记购买次数，限购不通过就把库存还给本地租约
+        反过来做的话，库存没拿到时要把 Redis 里加上去的次数再减回来，
+        同一个用户并发的请求会拿到重复的 seq（订单落库时撞唯一索引）
+         */
+        List<Long> result = checkQuota(voucherId, userId, orderId, today);
+        if (result.get(0) == LEASE_REVOKED) {
+            // 租约被当成失效收回了，本地剩下的作废，重新租一批再试一次
+            lease.revoke();
+            if (lease.isSoldOut() || !lease.take()) {
+                return Arrays.asList(1L, 0L);
+            }
+            result = checkQuota(voucherId, userId, orderId, today);
+        }
+        if (result.get(0) == LEASE_REVOKED) {
+            lease.revoke();
+            return Arrays.asList(1L, 0L);
+        }
+        long code = result.get(0);
+        if (code != 0) {
+            lease.giveBack();
+        }
+        if (code == 5 || code == 7) {
+            // Redis 里的预热信息已经变了（下架、改成抽签），本地的租约作废，下一个请求按新的信息重新建
+            dropLease(voucherId, lease);
+        } else if (code == 4) {
+            lease.close();
+        }
+        return result;
+    }
+
+    private void dropLease(Long voucherId, Lease lease) {
+        if (leases.remove(voucherId, lease)) {
+            lease.close();
+            log.info("秒杀券预热信息已变更，丢弃本地租约，voucherId：{}", voucherId);
+        }
+    }
+
+    /*
+    交给 stock-lease-quota 线程合并成一批去跑
+    超时或者脚本出错时不知道 Redis 里记没记上，本地扣掉的这张不还了，宁可少卖也不能超卖
+     */
+    private List<Long> checkQuota(Long voucherId, Long userId, Long orderId, String today) {
+        QuotaRequest request = new QuotaRequest(voucherId, userId, orderId, today);
+        quotaQueue.add(request);
+        try {
+            return request.result.get(QUOTA_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("限购检查被中断", e);
+        } catch (ExecutionException | TimeoutException e) {
+            throw new IllegalStateException("限购检查失败", e);
+        }
+    }
+
+    private void flushQuotaLoop() {
+        List<QuotaRequest> batch = new ArrayList<>(quotaBatchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(quotaQueue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            quotaQueue.drainTo(batch, quotaBatchSize - 1);
+            try {
+                runQuota(batch);
+            } catch (Exception e) {
+                log.error("批量限购检查失败，本批{}个请求", batch.size(), e);
+                batch.forEach(request -> request.result.completeExceptionally(e));
+            }
+            batch.clear();
+        }
+    }
+
+    // 日期不同的请求（跨零点那一下）拆开跑，脚本一次只认一个日期
+    private void runQuota(List<QuotaRequest> batch) {
+        Map<String, List<QuotaRequest>> byDay = batch.stream()
+                .collect(Collectors.groupingBy(request -> request.today));
+        for (Map.Entry<String, List<QuotaRequest>> entry : byDay.entrySet()) {
+            List<QuotaRequest> requests = entry.getValue();
+            List<String> args = new ArrayList<>(4 + requests.size() * 3);
+            args.add(nodeId);
+            args.add(entry.getKey());
+            args.add(String.valueOf(OrderStatusTable.ttlSeconds()));
+            // 成功的订单在脚本里直接写状态、进 stream，和记购买是原子的
+            args.add(useStream ? STREAM_ORDERS_KEY : "");
+            for (QuotaRequest request : requests) {
+                args.add(request.voucherId.toString());
+                args.add(request.userId.toString());
+                args.add(request.orderId.toString());
+            }
+            List<Long> values = stringRedisTemplate.execute(QUOTA_SCRIPT, Collections.emptyList(), args.toArray());
+            for (int i = 0; i < requests.size(); i++) {
+                requests.get(i).result.complete(values.subList(i * 2, i * 2 + 2));
+            }
+        }
+    }
+
+    private void renewNode() {
+        try {
+            stringRedisTemplate.opsForValue().set(SECKILL_LEASE_NODE_KEY + nodeId, "1",
+                    SECKILL_LEASE_NODE_TTL, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.error("租约存活标记续期失败，nodeId：{}", nodeId, e);
+        }
+    }
+
+    private void reclaimDeadNodes() {
+        try {
+            Set<String> voucherIds = stringRedisTemplate.opsForSet().members(SECKILL_LEASE_VOUCHERS_KEY);
+            if (voucherIds == null) {
+                return;
+            }
+            for (String voucherId : voucherIds) {
+                Long reclaimed = stringRedisTemplate.execute(RECLAIM_SCRIPT, Collections.emptyList(), voucherId);
+                if (reclaimed != null && reclaimed > 0) {
+                    log.warn("收回失联节点的租约库存，voucherId：{}，数量：{}", voucherId, reclaimed);
+                }
+            }
+        } catch (Exception e) {
+            log.error("收回失联节点的租约库存失败", e);
+        }
+    }
+
+    // 时间窗口和上下架状态从预热好的 seckill:voucher:{voucherId} 里读，之后由 refreshLeases 定时对一遍
+    private Lease openLease(Long voucherId) {
+        List<Object> meta = stringRedisTemplate.opsForHash().multiGet(
+                SECKILL_VOUCHER_KEY + voucherId, Arrays.asList("begin", "end", "status", "mode"));
+        if (meta.get(0) == null || !"1".equals(meta.get(2))) {
+            return null;
+        }
+        return new Lease(voucherId, Long.parseLong(meta.get(0).toString()), Long.parseLong(meta.get(1).toString()),
+                meta.get(3) != null && !"0".equals(meta.get(3)));
+    }
+
+    /*
+    定时把本节点缓存的租约和 Redis 里的预热信息对一遍（时间用 Redis 的）：
+      下架了、时间窗口或发售方式改了：旧租约作废（本地剩余还回去）并从 map 里拿掉，下一个请求按新的信息重新建
+      活动结束了：关掉，留在 map 里，防止结束后又有请求把库存租出来；结束时间后来又改晚了，下一轮会发现窗口变了
+    后台改了数据库，preheatUpcoming 最多一分钟写进 Redis，这里再最多晚 5 秒；这期间 seckill_quota.lua 每单都会按 Redis 里的判断
+     */
+    @Scheduled(fixedDelay = 5000)
+    public void refreshLeases() {
+        if (leases.isEmpty()) {
+            return;
+        }
+        Long now = stringRedisTemplate.execute(
+                (RedisCallback<Long>) connection -> connection.serverCommands().time(TimeUnit.MILLISECONDS));
+        leases.forEach((voucherId, lease) -> {
+            try {
+                Lease latest = openLease(voucherId);
+                if (latest == null || !lease.sameWindow(latest)) {
+                    dropLease(voucherId, lease);
+                } else if (now != null && lease.endMillis < now) {
+                    lease.close();
+                }
+            } catch (Exception e) {
+                log.error("刷新本地租约失败，voucherId：{}", voucherId, e);
+            }
+        });
+    }
+
+    // 节点下线时把所有没卖完的库存还回去
+    @PreDestroy
+    public void returnAll() {
+        refillExecutor.shutdownNow();
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
+        if (quotaFlusher != null) {
+            quotaFlusher.interrupt();
+        }
+        leases.values().forEach(Lease::close);
+        leases.clear();
+        if (enabled) {
+            stringRedisTemplate.delete(SECKILL_LEASE_NODE_KEY + nodeId);
+        }
+    }
+
+    private static final class QuotaRequest {
+        final Long voucherId;
+        final Long userId;
+        final Long orderId;
+        final String today;
+        final CompletableFuture<List<Long>> result = new CompletableFuture<>();
+
+        QuotaRequest(Long voucherId, Long userId, Long orderId, String today) {
+            this.voucherId = voucherId;
+            this.userId = userId;
+            this.orderId = orderId;
+            this.today = today;
+        }
+    }
+
+    private class Lease {
+        private final Long voucherId;
+        private final long beginMillis;
+        private final long endMillis;
+        // 抽签发售的券不能直接抢，也不用去租库存
+        private final boolean lottery;
+        private final AtomicInteger remaining = new AtomicInteger();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private volatile boolean closed;
+        private volatile long soldOutUntil;
+
+        Lease(Long voucherId, long beginMillis, long endMillis, boolean lottery) {
+            this.voucherId = voucherId;
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+            this.lottery = lottery;
+        }
+
+        boolean sameWindow(Lease other) {
+            return beginMillis == other.beginMillis && endMillis == other.endMillis && lottery == other.lottery;
+        }
+
+        // 关闭后的租约留在 map 里，防止活动结束后又有请求把库存租出来
+        boolean isSoldOut() {
+            long now = System.currentTimeMillis();
+            return closed || (remaining.get() <= 0 && now < soldOutUntil);
+        }
+
+        boolean take() {
+            while (!closed) {
+                int current = remaining.get();
+                if (current > 0) {
+                    if (remaining.compareAndSet(current, current - 1)) {
+                        if (current - 1 <= lowWatermark) {
+                            refillAsync();
+                        }
+                        return true;
+                    }
+                    continue;
+                }
+                // 本地已经空了，同步去租一批，租不到就是卖完了
+                if (!refill()) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        // 限购没通过，把刚扣的一张还回来；租约已经关了就直接还给 Redis
+        synchronized void giveBack() {
+            if (closed) {
+                stringRedisTemplate.execute(RETURN_SCRIPT, Collections.emptyList(), voucherId.toString(), "1", nodeId);
+                return;
+            }
+            remaining.incrementAndGet();
+        }
+
+        // 账本已经被收回了，本地剩下的不能再卖，也不用还
+        synchronized void revoke() {
+            int left = remaining.getAndSet(0);
+            if (left > 0) {
+                log.warn("本节点的租约已被收回，作废本地库存，voucherId：{}，数量：{}", voucherId, left);
+            }
+        }
+
+        private void refillAsync() {
+            if (refilling.compareAndSet(false, true)) {
+                refillExecutor.execute(() -> {
+                    try {
+                        refill();
+                    } finally {
+                        refilling.set(false);
+                    }
+                });
+            }
+        }
+
+        // 同一时刻只让一个线程去 Redis 租，其余线程等它租完直接用
+        private synchronized boolean refill() {
+            if (remaining.get() > lowWatermark) {
+                return true;
+            }
+            if (closed || System.currentTimeMillis() < soldOutUntil) {
+                return remaining.get() > 0;
+            }
+            Long leased = stringRedisTemplate.execute(LEASE_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), String.valueOf(leaseSize), nodeId, String.valueOf(SECKILL_LEASE_NODE_TTL));
+            if (leased == null || leased <= 0) {
+                soldOutUntil = System.currentTimeMillis() + SOLD_OUT_RECHECK_MILLIS;
+                return remaining.get() > 0;
+            }
+            remaining.addAndGet(leased.intValue());
+            return true;
+        }
+
+        synchronized void close() {
+            closed = true;
+            int left = remaining.getAndSet(0);
+            if (left > 0) {
+                stringRedisTemplate.execute(RETURN_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), String.valueOf(left), nodeId);
+                log.info("归还本地租约库存，voucherId：{}，数量：{}", voucherId, left);
+            }
+        }
+    }
+}
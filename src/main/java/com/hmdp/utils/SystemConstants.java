@@ -7,4 +7,8 @@ public class SystemConstants {
     public static final String USER_NICK_NAME_PREFIX = "用户_";
     public static final int DEFAULT_PAGE_SIZE = 5;
     public static final int MAX_PAGE_SIZE = 10;
+    // 秒杀券的发售方式（tb_seckill_voucher.sale_mode）：先到先得、抽签报名中、抽签已开奖
+    public static final int SALE_MODE_FIRST_COME = 0;
+    public static final int SALE_MODE_LOTTERY = 1;
+    public static final int SALE_MODE_LOTTERY_DRAWN = 2;
 }
@@ -0,0 +1,307 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.hmdp.config.CacheRegionProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.ExchangeTypes;
+import org.springframework.amqp.rabbit.annotation.Exchange;
+import org.springframework.amqp.rabbit.annotation.Queue;
+import org.springframework.amqp.rabbit.annotation.QueueBinding;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/*
+二级缓存：L1 是本节点的 Caffeine，L2 是 Redis（走 CacheClient，带布隆过滤器、single-flight、互斥重建）
+  读：先查 L1，命中直接返回，一次 Redis 都不碰；没命中走 CacheClient 查 Redis/数据库，结果回填 L1
+  写：evict 删 Redis、删本地，再通过 clearMessage.fanout 广播让其他节点删本地
+
+按缓存 key 前缀分区域（cache:shop:、cache:user:...），每个区域一个 Caffeine，
+大小、两级的过期时间、空值缓存多久都是按区域配的（hmdp.cache.regions，见 CacheRegionProperties）
+
+开了 hmdp.cache.tracking.enabled 以后，配置过的区域改用 Redis 的失效通知（RedisTrackingInvalidator）：
+  任何地方改了/删了/过期了 Redis 里的缓存 key，所有节点都会收到推送，不再依赖 evict 的广播，也不怕绕过 evict 的写
+  本地过期时间换成 tracked-local-ttl；和 Redis 断开期间收不到通知，本地缓存全部清掉、先不用，重连以后再用
+
+注意 L1 返回的是同一个对象，所有线程共用，调用方要改字段的话先拷贝一份
+ */
+@Slf4j
+@Component
+public class TwoLevelCache {
+
+    private static final String CLEAR_MESSAGE_EXCHANGE = "clearMessage.fanout";
+    private static final String CACHE_KEY_PREFIX = "cache:";
+    // L1 里的空值标记，Caffeine 不能存 null
+    private static final Object NULL = new Object();
+    // 失效墓碑保留多久（秒），比一次加载（single-flight 最多等几秒）长得多就行
+    private static final long TOMBSTONE_TTL = 60;
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+    @Resource
+    private CacheRegionProperties cacheRegionProperties;
+
+    @Value("${hmdp.cache.tracking.enabled:false}")
+    private volatile boolean tracking;
+    // 失效通知的连接是不是正常，断开期间本地缓存不可信
+    private volatile boolean trackingConnected;
+
+    private final Map<String, Region> regions = new ConcurrentHashMap<>();
+
+    public <R, ID> R get(String keyPre, ID id, Class<R> type, Function<ID, R> dbFallBack) {
+        Region region = region(keyPre);
+        CacheRegionProperties.Region policy = region.policy;
+        return get(region, id, i -> policy.isLogicalExpire()
+                ? cacheClient.queryWithLogicalExpire(keyPre, i, type, dbFallBack,
+                        policy.getRedisTtl(), TimeUnit.SECONDS, policy.getNullTtl())
+                : cacheClient.queryWithPassThough(keyPre, i, json -> JSONUtil.toBean(json, type), dbFallBack,
+                        policy.getRedisTtl(), TimeUnit.SECONDS, policy.getNullTtl()));
+    }
+
+    // 列表版本，Redis 里存的是 JSON 数组；数据库返回 null 按空值处理，返回空列表照常缓存
+    public <R, ID> List<R> getList(String keyPre, ID id, Class<R> elementType, Function<ID, List<R>> dbFallBack) {
+        Region region = region(keyPre);
+        CacheRegionProperties.Region policy = region.policy;
+        return get(region, id, i -> cacheClient.queryWithPassThough(keyPre, i,
+                json -> JSONUtil.toList(json, elementType), dbFallBack,
+                policy.getRedisTtl(), TimeUnit.SECONDS, policy.getNullTtl()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R, ID> R get(Region region, ID id, Function<ID, R> redisLoader) {
+        if (region.tracked && !trackingConnected) {
+            return redisLoader.apply(id);
+        }
+        String key = region.keyPre + id;
+        Object cached = region.local.getIfPresent(key);
+        if (cached != null) {
+            return cached == NULL ? null : (R) cached;
+        }
+        /*
+        读 Redis 和回填本地之间如果这个 key 收到了失效通知，读到的可能就是旧值，这时候不回填
+        （通知比回填先到的话，回填以后就再也没有通知来删它了）
+        只看这一个 key 的墓碑，别的 key 的失效不影响；开了失效通知时，这次加载自己把数据库的值写回 Redis 也会推回来一条，
+        这一次就不进本地，下一次从 Redis 读到（不再写 Redis）时再进
+         */
+        long start = region.sequence.get();
+        R r = redisLoader.apply(id);
+        if (region.invalidatedSince(key, start)) {
+            return r;
+        }
+        if (r != null) {
+            region.local.put(key, r);
+        } else if (region.policy.getNullTtl() > 0) {
+            region.local.put(key, NULL);
+        }
+        return r;
+    }
+
+    /*
+    数据变了以后调用（先改数据库再调）
+    在事务里调用时等事务提交以后再删：提交之前删的话，别的线程马上读到数据库里的旧值又写回缓存，
+    提交以后就再也没人来删它了；事务回滚了也不用删
+    广播失败不回滚数据库，其他节点最多旧 local-ttl 秒
+     */
+    public void evict(String keyPre, Object id) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    // 数据库已经提交了，这里抛异常只会让调用方以为失败了，记日志就行，缓存最多旧一个过期时间
+                    try {
+                        doEvict(keyPre, id);
+                    } catch (Exception e) {
+                        log.error("事务提交后删除缓存失败，key：{}", keyPre + id, e);
+                    }
+                }
+            });
+            return;
+        }
+        doEvict(keyPre, id);
+    }
+
+    private void doEvict(String keyPre, Object id) {
+        String key = keyPre + id;
+        stringRedisTemplate.delete(key);
+        Region region = region(keyPre);
+        invalidate(region, key);
+        if (region.tracked) {
+            // 删 Redis 的时候所有节点都会收到失效通知，不用再走 MQ
+            return;
+        }
+        try {
+            rabbitTemplate.convertAndSend(CLEAR_MESSAGE_EXCHANGE, "", key);
+        } catch (Exception e) {
+            log.error("缓存失效广播失败，key：{}", key, e);
+        }
+    }
+
+    /*
+    每个节点一个匿名队列，保证每个节点都能收到（以前店铺用的是具名队列 clearMessage.queue，
+    多个节点共用一个队列时一条消息只有一个节点能收到，其余节点的 Caffeine 要等过期）
+    SoldOutGate 也在这个交换机上，不是缓存 key 的消息这里找不到区域，直接忽略
+     */
+    @RabbitListener(bindings = @QueueBinding(
+            value = @Queue,
+            exchange = @Exchange(name = CLEAR_MESSAGE_EXCHANGE, type = ExchangeTypes.FANOUT)
+    ))
+    public void onClearMessage(String key) {
+        if (key == null) {
+            return;
+        }
+        invalidateLocal(key);
+    }
+
+    // 下面几个给 RedisTrackingInvalidator 用
+    public void invalidateLocal(String key) {
+        for (Region region : regions.values()) {
+            if (key.startsWith(region.keyPre)) {
+                invalidate(region, key);
+            }
+        }
+    }
+
+    public void invalidateAllLocal() {
+        for (Region region : regions.values()) {
+            region.clearedAt = region.sequence.incrementAndGet();
+            region.tombstones.invalidateAll();
+            region.local.invalidateAll();
+        }
+    }
+
+    // 开了配置但是用不了失效通知（Redis Cluster、RESP2、Redis 版本太低），退回 MQ 广播，已经建好的区域重建
+    public void disableTracking() {
+        tracking = false;
+        trackingConnected = false;
+        regions.clear();
+    }
+
+    public void setTrackingConnected(boolean connected) {
+        if (!connected) {
+            invalidateAllLocal();
+        }
+        trackingConnected = connected;
+    }
+
+    // 要订阅失效通知的 key 前缀：配置过的区域
+    public String[] trackedPrefixes() {
+        return cacheRegionProperties.getRegions().keySet().stream()
+                .map(name -> CACHE_KEY_PREFIX + name + ":")
+                .toArray(String[]::new);
+    }
+
+    private void invalidate(Region region, String key) {
+        region.tombstones.put(key, region.sequence.incrementAndGet());
+        region.local.invalidate(key);
+    }
+
+    private Region region(String keyPre) {
+        Region region = regions.get(keyPre);
+        return region != null ? region : regions.computeIfAbsent(keyPre, this::createRegion);
+    }
+
+    private Region createRegion(String keyPre) {
+        String name = keyPre;
+        if (name.startsWith(CACHE_KEY_PREFIX)) {
+            name = name.substring(CACHE_KEY_PREFIX.length());
+        }
+        if (name.endsWith(":")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        CacheRegionProperties.Region policy = cacheRegionProperties.getRegions().get(name);
+        // 没配置的区域不在订阅的前缀里，收不到失效通知，还是走 MQ 广播
+        boolean tracked = tracking && policy != null;
+        if (policy == null) {
+            policy = new CacheRegionProperties.Region();
+        }
+        Region region = new Region(keyPre, policy, tracked);
+        log.info("创建缓存区域：{}，本地{}条/{}秒，Redis {}秒，空值{}秒，逻辑过期：{}，失效通知：{}", name,
+                policy.getLocalMaxSize(), region.localTtl, policy.getRedisTtl(), policy.getNullTtl(),
+                policy.isLogicalExpire(), tracked);
+        return region;
+    }
+
+    private static final class Region {
+        final String keyPre;
+        final CacheRegionProperties.Region policy;
+        final boolean tracked;
+        final long localTtl;
+        final Cache<String, Object> local;
+        /*
+        回填本地之前用来判断读 Redis 期间这个 key 有没有失效过：
+          sequence 每次失效加一，tombstones 记每个 key 最后一次失效时的 sequence
+          墓碑只留 TOMBSTONE_TTL 秒、最多和本地缓存一样多条，被挤掉或过期的墓碑把 evictedUpTo 抬上去，
+          比它早开始的回填一律不进本地（宁可少缓存一次，不能漏掉失效）
+          clearedAt 是整个区域清空的时候
+         */
+        final AtomicLong sequence = new AtomicLong();
+        final Cache<String, Long> tombstones;
+        final AtomicLong evictedUpTo = new AtomicLong();
+        volatile long clearedAt;
+
+        Region(String keyPre, CacheRegionProperties.Region policy, boolean tracked) {
+            this.keyPre = keyPre;
+            this.policy = policy;
+            this.tracked = tracked;
+            this.localTtl = tracked && policy.getTrackedLocalTtl() > 0 ? policy.getTrackedLocalTtl() : policy.getLocalTtl();
+            // 空值和正常数据的过期时间不一样，用 Expiry 按条目算
+            long valueNanos = TimeUnit.SECONDS.toNanos(localTtl);
+            long nullNanos = TimeUnit.SECONDS.toNanos(Math.min(policy.getNullTtl(), localTtl));
+            this.local = Caffeine.newBuilder()
+                    .maximumSize(policy.getLocalMaxSize())
+                    .expireAfter(new Expiry<String, Object>() {
+                        @Override
+                        public long expireAfterCreate(String key, Object value, long currentTime) {
+                            return value == NULL ? nullNanos : valueNanos;
+                        }
+
+                        @Override
+                        public long expireAfterUpdate(String key, Object value, long currentTime, long currentDuration) {
+                            return value == NULL ? nullNanos : valueNanos;
+                        }
+
+                        @Override
+                        public long expireAfterRead(String key, Object value, long currentTime, long currentDuration) {
+                            return currentDuration;
+                        }
+                    })
+                    .build();
+            this.tombstones = Caffeine.newBuilder()
+                    .maximumSize(policy.getLocalMaxSize())
+                    .expireAfterWrite(TOMBSTONE_TTL, TimeUnit.SECONDS)
+                    .<String, Long>evictionListener((key, seq, cause) -> {
+                        if (seq != null) {
+                            evictedUpTo.accumulateAndGet(seq, Math::max);
+                        }
+                    })
+                    .build();
+        }
+
+        boolean invalidatedSince(String key, long start) {
+            if (clearedAt > start || evictedUpTo.get() > start) {
+                return true;
+            }
+            Long seq = tombstones.getIfPresent(key);
+            return seq != null && seq > start;
+        }
+    }
+}
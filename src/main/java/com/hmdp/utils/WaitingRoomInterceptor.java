@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.annotation.Resource;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/*
+秒杀排队（虚拟等候室），挂在 /voucher-order/seckill/{id} 前面，在登录拦截器之后执行
+券一开抢所有人同一瞬间打进来，Tomcat 线程全堵在 Redis 和 RabbitMQ 上
+这里先给每个用户发一张号（seckill:queue:{voucherId} 有序集合），按每张券每秒 rate 张的速度放行
+没轮到的直接返回 429 和“多少毫秒后再来”，只有放行的请求才会去跑 seckill.lua，后面 Redis 和数据库看到的是平滑的流量
+
+速率默认用 hmdp.seckill.waiting-room.rate，单张券可以在 seckill:voucher:{voucherId} 里加 admitRate 字段单独指定
+ */
+@Slf4j
+@Component
+public class WaitingRoomInterceptor implements HandlerInterceptor {
+
+    private static final DefaultRedisScript<Long> WAITING_ROOM_SCRIPT;
+    static {
+        WAITING_ROOM_SCRIPT = new DefaultRedisScript<>();
+        WAITING_ROOM_SCRIPT.setLocation(new ClassPathResource("waiting_room.lua"));
+        WAITING_ROOM_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${hmdp.seckill.waiting-room.rate:500}")
+    private int rate;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SoldOutGate soldOutGate;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 异步接口结果回来时的二次派发，已经排过队了
+        if (request.getDispatcherType() == DispatcherType.ASYNC) {
+            return true;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, String> pathVariables =
+                (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        // 路径里没有券 ID 的（/voucher-order/seckill/batch）不排队，开了排队时那个接口在 service 里直接拒绝
+        if (pathVariables == null || pathVariables.get("id") == null) {
+            return true;
+        }
+        Long voucherId = Long.valueOf(pathVariables.get("id"));
+        // 已经卖完的券本地就能拒绝，不用排队也不用访问 Redis
+        if (soldOutGate.isSoldOut(voucherId)) {
+            return true;
+        }
+
+        Long waitMillis;
+        try {
+            waitMillis = stringRedisTemplate.execute(WAITING_ROOM_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), UserHolder.getUser().getId().toString(), String.valueOf(rate));
+        } catch (Exception e) {
+            // 排队只是削峰，Redis 出问题时不能把所有人都挡在外面，后面 seckill.lua 照样兜底
+            log.error("秒杀排队脚本执行失败，直接放行，voucherId：{}", voucherId, e);
+            return true;
+        }
+        if (waitMillis == null || waitMillis <= 0) {
+            return true;
+        }
+
+        // 429 + Retry-After（秒），具体的毫秒数放在 data 里给前端倒计时用
+        response.setStatus(429);
+        response.setHeader("Retry-After", String.valueOf((waitMillis + 999) / 1000));
+        response.setContentType("application/json;charset=UTF-8");
+        Result result = new Result(false, "排队中，请" + waitMillis + "毫秒后重试", waitMillis, null);
+        response.getOutputStream().write(JSONUtil.toJsonStr(result).getBytes(StandardCharsets.UTF_8));
+        return false;
+    }
+}
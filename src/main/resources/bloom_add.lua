@@ -0,0 +1,8 @@
+---
+--- 往 Redis 里的布隆过滤器（位图）加一个元素：KEYS[1] 是位图，ARGV 是这个元素算出来的 k 个位置
+--- 位置由 Java 那边算好（BloomFilterGuard），脚本只负责一次调用把 k 位都置上
+---
+for i = 1, #ARGV do
+    redis.call('setbit', KEYS[1], ARGV[i], 1)
+end
+return 1
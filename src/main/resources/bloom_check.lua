@@ -0,0 +1,13 @@
+---
+--- 查 Redis 里的布隆过滤器：k 个位置全是 1 才返回 1
+--- 位图不存在（还没建好，或者被清掉了）时返回 1，宁可放过去也不能把存在的数据挡掉
+---
+if(redis.call('exists', KEYS[1]) == 0) then
+    return 1
+end
+for i = 1, #ARGV do
+    if(redis.call('getbit', KEYS[1], ARGV[i]) == 0) then
+        return 0
+    end
+end
+return 1
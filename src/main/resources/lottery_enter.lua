@@ -0,0 +1,31 @@
+---
+--- 抽签发售报名：报名时间就是秒杀券的 begin ~ end，只记一下谁报了名，不碰库存
+--- 报名名单是一个位图 seckill:lottery:{voucherId}，第 userId 位是 1 表示报过名
+--- 一次 SETBIT，O(1)，天然去重，用户 ID 是自增的、比较密集，一个人只占 1 位
+---
+--- ARGV：voucherId, userId
+--- 返回：0 报名成功，2 已经报过名，3 未开始，4 已结束，5 券不存在/未预热/已下架，7 不是抽签发售的券
+---
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+
+local meta = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'begin', 'end', 'status', 'mode')
+if(not meta[1] or tonumber(meta[3]) ~= 1) then
+    return 5
+end
+if(tonumber(meta[4]) ~= 1) then
+    return 7
+end
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+if(nowMillis < tonumber(meta[1])) then
+    return 3
+end
+if(nowMillis > tonumber(meta[2])) then
+    return 4
+end
+
+if(redis.call('setbit', 'seckill:lottery:' .. voucherId, userId, 1) == 1) then
+    return 2
+end
+return 0
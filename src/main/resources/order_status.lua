@@ -0,0 +1,11 @@
+---
+--- 更新订单状态：只允许从“处理中”（或者还没有状态）变成最终状态
+--- 同一条订单消息可能被重复投递，第二次进来会被唯一索引挡住，不能把已经成功的订单改成失败
+---
+local key = 'order:status:' .. ARGV[1]
+local current = redis.call('get', key)
+if(current and current ~= '0') then
+    return 0
+end
+redis.call('set', key, ARGV[2], 'EX', ARGV[3])
+return 1
@@ -3,21 +3,174 @@
 --- Created by she.
 --- DateTime: 2025-10-21 15:23
 ---
+--- 返回 {code, seq}
+---   code：0 成功，1 库存不足，2 超过每人限购，3 未开始，4 已结束，5 券不存在/未预热/已下架，6 超过本店每日限购，
+---         7 抽签发售的券（要走 lottery_enter.lua 报名，不能直接抢），
+---         8 只在分片模式下出现：本分片没库存了，但限购已经通过、买家记录已经记上，调用方去兄弟分片拿库存
+---   seq：成功时是这个用户第几次买这张券（从 1 开始），订单落库时写进 buy_seq；失败时是 0
+---
+--- 用到的 key 全部由调用方通过 KEYS 传进来（见 SeckillRouter），脚本里不拼 key
+--- 前 6 个 key 是这张券（或这个分片）自己的，买家记录的三个派生 key 由 SeckillRouter.buyerKeys 算好：
+---   KEYS[1] seckill:voucher:{voucherId}  KEYS[2] seckill:stock:{voucherId}  KEYS[3] seckill:order:{voucherId}
+---   KEYS[4] seckill:order:{voucherId}:{userId / 100}  KEYS[5] seckill:order:{voucherId}:bits
+---   KEYS[6] seckill:order:{voucherId}:bloom
+--- 不分片的券后面再跟 2~3 个：
+---   KEYS[7] seckill:shop:daily:{shopId}:{today}  KEYS[8] order:status:{orderId}
+---   KEYS[9] 订单 stream，传了就在同一个脚本里把订单写进去
+---   这几个 key 不在同一个槽里，不分片的券只能跑在单机/主从的 Redis 上，要上 Cluster 就得开分片
+--- 分片的券只传 6 个 key，全部是用户所在分片的，都带同一个 hash tag {voucherId:i}，脚本只碰这一个槽
+---   店铺每日限购、订单状态、stream 不在这个槽里，由调用方在脚本成功以后再写
+--- 其他脚本（租约、批量下单、排队、抽签等）还是在脚本里拼 key，只能跑在单机/主从上，见 RedisScripts
+---
+--- ARGV：voucherId, userId, orderId, statusTtl（订单状态表的过期时间，秒）
+---
+local metaKey = KEYS[1]
+local stockKey = KEYS[2]
+local orderKey = KEYS[3]
+local counterKey = KEYS[4]
+local bitsKey = KEYS[5]
+local bloomKey = KEYS[6]
+local sharded = #KEYS == 6
+local shopDailyKey = KEYS[7]
+local statusKey = KEYS[8]
+local streamKey = KEYS[9]
+
 local voucherId = ARGV[1]
 local userId = ARGV[2]
+local orderId = ARGV[3]
+local statusTtl = ARGV[4]
 
-local stockKey = 'seckill:stock:' .. voucherId
-local orderKey = 'seckill:order:' .. voucherId
+-- 预热时写进来的时间窗口和状态，全在 Redis 里判断，不用回数据库查
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'status', 'buyers', 'bloomBits', 'bloomHashes',
+        'limit', 'shopDailyLimit', 'mode')
+if(not meta[1] or tonumber(meta[3]) ~= 1) then
+    return {5, 0}
+end
+if((tonumber(meta[9]) or 0) ~= 0) then
+    return {7, 0}
+end
+-- 用 Redis 的时间，所有节点看到的是同一个时钟
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+if(nowMillis < tonumber(meta[1])) then
+    return {3, 0}
+end
+if(nowMillis > tonumber(meta[2])) then
+    return {4, 0}
+end
+
+-- 每人限购几张，没配置就是一人一单
+local limit = tonumber(meta[7]) or 1
+local shopDailyLimit = tonumber(meta[8]) or 0
+
+--[[
+买家记录有四种形式，由预热信息里的 buyers 字段决定（分片的券每个分片的副本里各记各的）：
+  没有 / set   seckill:order:{voucherId}        普通 Set，元素是用户 ID，只能表示买没买过（一人一单的券）
+  counter      KEYS[4] seckill:order:{voucherId}:{userId / 100}  哈希，字段 userId % 100，值是买了几张（限购多张的券）
+               按 100 个用户一组拆开，每个哈希都小到能用紧凑编码（listpack），每个买家占的内存和 Set 差不多
+  bitmap       KEYS[5] seckill:order:{voucherId}:bits   位图，第 userId 位是 1 表示买过（活动结束后压缩出来的）
+  bloom        KEYS[6] seckill:order:{voucherId}:bloom  布隆过滤器，bloomBits 位、bloomHashes 个哈希（同上）
+后三种是在 KEYS[3] 后面加后缀，分片的券 hash tag 不变，还在同一个槽里
+布隆过滤器的位置：h = sha1(userId)，h1/h2 取前两段 32 位，第 i 个位置是 (h1 + i * h2) % bloomBits
+Java 那边（SeckillVoucherServiceImpl）必须按同样的算法来写
+]]
+local buyersForm = meta[4] or 'set'
 
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+local function bloomPositions()
+    local hash = redis.sha1hex(userId)
+    local h1 = tonumber(string.sub(hash, 1, 8), 16)
+    local h2 = tonumber(string.sub(hash, 9, 16), 16)
+    local bits = tonumber(meta[5])
+    local positions = {}
+    for i = 0, tonumber(meta[6]) - 1 do
+        positions[i + 1] = (h1 + i * h2) % bits
+    end
+    return positions
+end
+
+local function counterField()
+    return tostring(tonumber(userId) % 100)
+end
+
+-- 这个用户已经买了几张
+local function boughtCount()
+    if(buyersForm == 'counter') then
+        return tonumber(redis.call('hget', counterKey, counterField())) or 0
+    end
+    if(buyersForm == 'bitmap') then
+        return redis.call('getbit', bitsKey, userId)
+    end
+    if(buyersForm == 'bloom') then
+        for _, position in ipairs(bloomPositions()) do
+            if(redis.call('getbit', bloomKey, position) == 0) then
+                return 0
+            end
+        end
+        return 1
+    end
+    return redis.call('sismember', orderKey, userId)
+end
+
+-- 记一次购买，返回这是第几张
+local function addBuyer()
+    if(buyersForm == 'counter') then
+        return redis.call('hincrby', counterKey, counterField(), 1)
+    end
+    if(buyersForm == 'bitmap') then
+        redis.call('setbit', bitsKey, userId, 1)
+    elseif(buyersForm == 'bloom') then
+        for _, position in ipairs(bloomPositions()) do
+            redis.call('setbit', bloomKey, position, 1)
+        end
+    else
+        redis.call('sadd', orderKey, userId)
+    end
     return 1
 end
 
-if(redis.call('sismember', orderKey, userId) == 1) then
-    return 2
+-- 每人限购和店铺每日限购都过了才返回 0；分片模式下店铺每日限购由调用方查
+local function checkQuota()
+    if(boughtCount() >= limit) then
+        return 2
+    end
+    if(not sharded and shopDailyLimit > 0 and (tonumber(redis.call('hget', shopDailyKey, userId)) or 0) >= shopDailyLimit) then
+        return 6
+    end
+    return 0
 end
 
-redis.call('incrby', stockKey, -1)
-redis.call('sadd', orderKey, userId)
+-- 分片模式：只在用户自己的分片里扣库存、记买家
+if(sharded) then
+    local quota = checkQuota()
+    if(quota ~= 0) then
+        return {quota, 0}
+    end
+    if((tonumber(redis.call('get', stockKey)) or 0) > 0) then
+        redis.call('incrby', stockKey, -1)
+        return {0, addBuyer()}
+    end
+    -- 本分片空了，先把买家记上占住名额（同一个用户并发的请求不会都去兄弟分片拿），拿不到库存时调用方再撤销
+    return {8, addBuyer()}
+end
+
+-- 库存 key 不存在时按 0 处理，不再 tonumber(nil) 报错
+if((tonumber(redis.call('get', stockKey)) or 0) <= 0) then
+    return {1, 0}
+end
+
+local quota = checkQuota()
+if(quota ~= 0) then
+    return {quota, 0}
+end
 
-return 0
\ No newline at end of file
+redis.call('incrby', stockKey, -1)
+local seq = addBuyer()
+if(shopDailyLimit > 0) then
+    redis.call('hincrby', shopDailyKey, userId, 1)
+    redis.call('expire', shopDailyKey, 172800)
+end
+redis.call('set', statusKey, '0', 'EX', statusTtl)
+if(streamKey) then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'buySeq', seq)
+end
+return {0, seq}
@@ -0,0 +1,165 @@
+---
+--- 一次买多张秒杀券：同一个用户，全部能买才全部扣，有一张不行就一张都不扣
+--- 每张券的判断和 seckill.lua 完全一样（预热信息、时间窗口、分片库存、三种形式的买家集合）
+--- 因为 lua 脚本里不能互相引用，这里把那几段逻辑改成了按券传参的函数
+--- 一次要碰好几张券的 key，这些 key 不在同一个槽里，批量下单只能跑在单机/主从的 Redis 上
+--- 分片的券库存按 seckill:stock:{voucherId:i} 挨个找，买家记录在用户自己的分片里（SeckillRouter.homeShard）
+---
+--- ARGV：userId, shardHint, statusTtl, streamKey, today, 然后每张券两个参数 voucherId, orderId
+--- 返回 {code, index}：code 和 seckill.lua 一样（0 成功，1 库存不足，2 超过每人限购，3 未开始，4 已结束，5 不存在/下架，
+---                     6 超过本店每日限购，7 抽签发售），index 是出问题的那张券在参数里的下标（从 0 开始）
+--- 成功时返回 {0, -1, seq1, seq2, ...}，seq 是每张券这次是这个用户的第几张
+---
+local userId = ARGV[1]
+local shardHint = tonumber(ARGV[2]) or 0
+local statusTtl = ARGV[3]
+local streamKey = ARGV[4]
+local today = ARGV[5]
+local count = (#ARGV - 5) / 2
+
+local time = redis.call('time')
+local nowMillis = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+local function bloomPositions(meta)
+    local hash = redis.sha1hex(userId)
+    local h1 = tonumber(string.sub(hash, 1, 8), 16)
+    local h2 = tonumber(string.sub(hash, 9, 16), 16)
+    local bits = tonumber(meta[6])
+    local positions = {}
+    for i = 0, tonumber(meta[7]) - 1 do
+        positions[i + 1] = (h1 + i * h2) % bits
+    end
+    return positions
+end
+
+local function counterKey(orderKey)
+    return orderKey .. ':' .. math.floor(tonumber(userId) / 100)
+end
+
+local counterField = tostring(tonumber(userId) % 100)
+
+local function boughtCount(orderKey, meta)
+    local form = meta[5] or 'set'
+    if(form == 'counter') then
+        return tonumber(redis.call('hget', counterKey(orderKey), counterField)) or 0
+    end
+    if(form == 'bitmap') then
+        return redis.call('getbit', orderKey .. ':bits', userId)
+    end
+    if(form == 'bloom') then
+        for _, position in ipairs(bloomPositions(meta)) do
+            if(redis.call('getbit', orderKey .. ':bloom', position) == 0) then
+                return 0
+            end
+        end
+        return 1
+    end
+    return redis.call('sismember', orderKey, userId)
+end
+
+local function addBuyer(orderKey, meta)
+    local form = meta[5] or 'set'
+    if(form == 'counter') then
+        return redis.call('hincrby', counterKey(orderKey), counterField, 1)
+    end
+    if(form == 'bitmap') then
+        redis.call('setbit', orderKey .. ':bits', userId, 1)
+    elseif(form == 'bloom') then
+        for _, position in ipairs(bloomPositions(meta)) do
+            redis.call('setbit', orderKey .. ':bloom', position, 1)
+        end
+    else
+        redis.call('sadd', orderKey, userId)
+    end
+    return 1
+end
+
+-- 同一家店的几张券一起买时，店铺每日限购要把这一批里前面几张也算上
+local shopPending = {}
+
+-- 第一遍：只检查不写，顺便记下每张券要扣哪个库存 key
+local picked = {}
+for i = 1, count do
+    local voucherId = ARGV[5 + i * 2 - 1]
+    local stockKey = 'seckill:stock:' .. voucherId
+    local orderKey = 'seckill:order:' .. voucherId
+    local soldOutKey = 'seckill:soldout:' .. voucherId
+    local meta = redis.call('hmget', 'seckill:voucher:' .. voucherId,
+            'begin', 'end', 'status', 'shards', 'buyers', 'bloomBits', 'bloomHashes',
+            'limit', 'shopId', 'shopDailyLimit', 'mode')
+    if(not meta[1] or tonumber(meta[3]) ~= 1) then
+        return {5, i - 1}
+    end
+    if((tonumber(meta[11]) or 0) ~= 0) then
+        return {7, i - 1}
+    end
+    if(nowMillis < tonumber(meta[1])) then
+        return {3, i - 1}
+    end
+    if(nowMillis > tonumber(meta[2])) then
+        return {4, i - 1}
+    end
+
+    local shards = tonumber(meta[4]) or 1
+    local pickedKey
+    if(shards <= 1) then
+        if((tonumber(redis.call('get', stockKey)) or 0) > 0) then
+            pickedKey = stockKey
+        end
+    elseif(redis.call('exists', soldOutKey) == 0) then
+        for s = 0, shards - 1 do
+            local shardKey = 'seckill:stock:{' .. voucherId .. ':' .. ((shardHint + s) % shards) .. '}'
+            if((tonumber(redis.call('get', shardKey)) or 0) > 0) then
+                pickedKey = shardKey
+                break
+            end
+        end
+        if(not pickedKey) then
+            -- 所有分片都空了，和 seckill.lua 一样写售罄汇总标记
+            redis.call('set', soldOutKey, '1')
+        end
+    end
+    if(not pickedKey) then
+        return {1, i - 1}
+    end
+    if(shards > 1) then
+        -- 买家形式以用户所在分片的副本为准（活动结束后是按分片压缩的）
+        local home = tonumber(userId) % shards
+        orderKey = 'seckill:order:{' .. voucherId .. ':' .. home .. '}'
+        local shardMeta = redis.call('hmget', 'seckill:voucher:{' .. voucherId .. ':' .. home .. '}',
+                'buyers', 'bloomBits', 'bloomHashes')
+        meta[5], meta[6], meta[7] = shardMeta[1], shardMeta[2], shardMeta[3]
+    end
+    if(boughtCount(orderKey, meta) >= (tonumber(meta[8]) or 1)) then
+        return {2, i - 1}
+    end
+    local shopDailyLimit = tonumber(meta[10]) or 0
+    local shopDailyKey
+    if(shopDailyLimit > 0) then
+        shopDailyKey = 'seckill:shop:daily:' .. (meta[9] or '') .. ':' .. today
+        local bought = (tonumber(redis.call('hget', shopDailyKey, userId)) or 0) + (shopPending[shopDailyKey] or 0)
+        if(bought >= shopDailyLimit) then
+            return {6, i - 1}
+        end
+        shopPending[shopDailyKey] = (shopPending[shopDailyKey] or 0) + 1
+    end
+    picked[i] = {voucherId, ARGV[5 + i * 2], pickedKey, orderKey, meta, shopDailyKey}
+end
+
+-- 第二遍：全部通过了才开始扣
+local result = {0, -1}
+for i = 1, count do
+    local voucherId, orderId, pickedKey, orderKey, meta, shopDailyKey = unpack(picked[i])
+    redis.call('incrby', pickedKey, -1)
+    local seq = addBuyer(orderKey, meta)
+    if(shopDailyKey) then
+        redis.call('hincrby', shopDailyKey, userId, 1)
+        redis.call('expire', shopDailyKey, 172800)
+    end
+    redis.call('set', 'order:status:' .. orderId, '0', 'EX', statusTtl)
+    if(streamKey ~= '') then
+        redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'buySeq', seq)
+    end
+    result[i + 2] = seq
+end
+return result
@@ -0,0 +1,101 @@
+---
+--- 租约模式下的限购检查：库存已经在本节点扣过了，这里只在 Redis 里记一次购买
+--- 每人限购和店铺每日限购的规则和 seckill.lua 一样，买家记录只会是 set 或 counter 两种形式
+--- （bitmap/bloom 是活动结束以后才压缩出来的，租约在活动结束后就不再放行了）
+--- 同一个节点同一时刻在等的请求攒成一批一起检查（StockLeaseManager 里合并），一批只跑一次脚本
+--- 批内按顺序逐个处理，同一个用户在一批里出现两次，第二次能看到第一次写的记录
+---
+--- 成功的请求在同一个脚本里写订单状态“处理中”，stream 模式下再把订单 XADD 进去，
+--- 和记购买、扣账本是原子的，不会出现限购记上了、订单却没进队列的情况
+---
+--- 上下架状态、时间窗口每次都按 Redis 里的预热信息和 Redis 的时间重新判断（和 seckill.lua 一样），
+--- 节点本地缓存的租约信息可能是旧的，本地时钟也可能不准，以这里为准
+---
+--- 每成功一张，本节点在租约账本 seckill:lease:{voucherId} 上的数量减一；账上没有了说明租约已经被收回
+--- （节点被当成挂了，见 stock_reclaim.lua），本地剩下的库存作废，返回 9
+---
+--- ARGV：nodeId, today, statusTtl, streamKey（空串表示不写 stream）, 然后每个请求三个参数 voucherId, userId, orderId
+--- 返回 {code1, seq1, code2, seq2, ...}：0 成功，2 超过每人限购，3 未开始，4 已结束（或已经压缩），
+---                                    5 券不存在/未预热/已下架，6 超过本店每日限购，7 抽签发售，9 租约已被收回
+---
+local nodeId = ARGV[1]
+local today = ARGV[2]
+local statusTtl = ARGV[3]
+local streamKey = ARGV[4]
+
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+
+local function check(voucherId, userId, orderId)
+    local orderKey = 'seckill:order:' .. voucherId
+    local meta = redis.call('hmget', 'seckill:voucher:' .. voucherId, 'buyers', 'limit', 'shopId', 'shopDailyLimit',
+            'begin', 'end', 'status', 'mode')
+    if(not meta[5] or tonumber(meta[7]) ~= 1) then
+        return 5, 0
+    end
+    if((tonumber(meta[8]) or 0) ~= 0) then
+        return 7, 0
+    end
+    if(nowMillis < tonumber(meta[5])) then
+        return 3, 0
+    end
+    if(nowMillis > tonumber(meta[6])) then
+        return 4, 0
+    end
+
+    local ledgerKey = 'seckill:lease:' .. voucherId
+    if((tonumber(redis.call('hget', ledgerKey, nodeId)) or 0) <= 0) then
+        return 9, 0
+    end
+
+    local form = meta[1] or 'set'
+    if(form ~= 'set' and form ~= 'counter') then
+        return 4, 0
+    end
+    local limit = tonumber(meta[2]) or 1
+    local shopDailyLimit = tonumber(meta[4]) or 0
+    local shopDailyKey = 'seckill:shop:daily:' .. (meta[3] or '') .. ':' .. today
+
+    local counterKey = orderKey .. ':' .. math.floor(tonumber(userId) / 100)
+    local counterField = tostring(tonumber(userId) % 100)
+
+    local bought
+    if(form == 'counter') then
+        bought = tonumber(redis.call('hget', counterKey, counterField)) or 0
+    else
+        bought = redis.call('sismember', orderKey, userId)
+    end
+    if(bought >= limit) then
+        return 2, 0
+    end
+    if(shopDailyLimit > 0 and (tonumber(redis.call('hget', shopDailyKey, userId)) or 0) >= shopDailyLimit) then
+        return 6, 0
+    end
+
+    local seq = 1
+    if(form == 'counter') then
+        seq = redis.call('hincrby', counterKey, counterField, 1)
+    else
+        redis.call('sadd', orderKey, userId)
+    end
+    if(shopDailyLimit > 0) then
+        redis.call('hincrby', shopDailyKey, userId, 1)
+        redis.call('expire', shopDailyKey, 172800)
+    end
+    if(redis.call('hincrby', ledgerKey, nodeId, -1) <= 0) then
+        redis.call('hdel', ledgerKey, nodeId)
+    end
+    redis.call('set', 'order:status:' .. orderId, '0', 'EX', statusTtl)
+    if(streamKey ~= '') then
+        redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'buySeq', seq)
+    end
+    return 0, seq
+end
+
+local result = {}
+for i = 5, #ARGV, 3 do
+    local code, seq = check(ARGV[i], ARGV[i + 1], ARGV[i + 2])
+    result[#result + 1] = code
+    result[#result + 1] = seq
+end
+return result
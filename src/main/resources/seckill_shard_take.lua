@@ -0,0 +1,10 @@
+---
+--- 分片模式下用户自己的分片空了，从兄弟分片拿一张库存
+--- KEYS[1] seckill:stock:{voucherId:i}
+--- 返回 1 拿到了，0 这个分片也空了
+---
+if((tonumber(redis.call('get', KEYS[1])) or 0) <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
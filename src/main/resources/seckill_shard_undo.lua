@@ -0,0 +1,20 @@
+---
+--- 分片模式下 seckill.lua 已经在用户的分片里记了买家，但后面没买成（兄弟分片也没库存、超过本店每日限购），把这次购买撤销
+--- KEYS[1] seckill:voucher:{voucherId:i}  KEYS[2] seckill:order:{voucherId:i}
+--- KEYS[3] seckill:order:{voucherId:i}:{userId / 100}  KEYS[4] seckill:order:{voucherId:i}:bits（SeckillRouter.buyerKeys）
+--- ARGV：userId
+--- 布隆过滤器没法撤销，不过只有活动结束以后才会压缩成布隆过滤器，那时候也不会再有人买成功了
+---
+local userId = ARGV[1]
+local form = redis.call('hget', KEYS[1], 'buyers') or 'set'
+if(form == 'counter') then
+    local counterField = tostring(tonumber(userId) % 100)
+    if(redis.call('hincrby', KEYS[3], counterField, -1) <= 0) then
+        redis.call('hdel', KEYS[3], counterField)
+    end
+elseif(form == 'bitmap') then
+    redis.call('setbit', KEYS[4], userId, 0)
+elseif(form ~= 'bloom') then
+    redis.call('srem', KEYS[2], userId)
+end
+return 1
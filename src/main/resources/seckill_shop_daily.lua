@@ -0,0 +1,13 @@
+---
+--- 分片模式下的店铺每日限购：店铺每日限购的 key 跨券共享，和分片不在一个槽里，单独一个脚本
+--- KEYS[1] seckill:shop:daily:{shopId}:{today}
+--- ARGV：userId, shopDailyLimit
+--- 返回 0 通过并记上一次，6 超过本店每日限购
+---
+local userId = ARGV[1]
+if((tonumber(redis.call('hget', KEYS[1], userId)) or 0) >= tonumber(ARGV[2])) then
+    return 6
+end
+redis.call('hincrby', KEYS[1], userId, 1)
+redis.call('expire', KEYS[1], 172800)
+return 0
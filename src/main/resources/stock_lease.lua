@@ -0,0 +1,62 @@
+---
+--- 从 Redis 的库存里一次性租走一批给本节点，支持单 key 和分片两种库存
+--- 返回实际租到的数量，库存不够时有多少给多少，0 表示已经卖完
+--- 分片的库存 key 各带各的 hash tag，一个脚本挨个分片凑数会跨槽，租约模式只能跑在单机/主从的 Redis 上
+---
+--- 租到的数量记进租约账本 seckill:lease:{voucherId}（哈希，节点 ID -> 还没卖出去的数量），
+--- 同时续上节点的存活标记 seckill:lease:node:{nodeId}，节点挂了标记过期，stock_reclaim.lua 按账本把库存收回来
+---
+--- ARGV：voucherId, want, nodeId, 存活标记的过期时间（秒）
+---
+local voucherId = ARGV[1]
+local want = tonumber(ARGV[2])
+local nodeId = ARGV[3]
+local nodeTtl = ARGV[4]
+
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:voucher:' .. voucherId
+local soldOutKey = 'seckill:soldout:' .. voucherId
+
+local function record(leased)
+    if(leased > 0) then
+        redis.call('hincrby', 'seckill:lease:' .. voucherId, nodeId, leased)
+        redis.call('sadd', 'seckill:lease:vouchers', voucherId)
+        redis.call('set', 'seckill:lease:node:' .. nodeId, '1', 'EX', nodeTtl)
+    end
+    return leased
+end
+
+local shards = tonumber(redis.call('hget', metaKey, 'shards')) or 1
+
+if(shards <= 1) then
+    local stock = tonumber(redis.call('get', stockKey)) or 0
+    local leased = math.min(stock, want)
+    if(leased <= 0) then
+        return 0
+    end
+    redis.call('incrby', stockKey, -leased)
+    return record(leased)
+end
+
+if(redis.call('exists', soldOutKey) == 1) then
+    return 0
+end
+
+-- 分片模式下挨个分片凑够数量
+local leased = 0
+for i = 0, shards - 1 do
+    local shardKey = 'seckill:stock:{' .. voucherId .. ':' .. i .. '}'
+    local stock = tonumber(redis.call('get', shardKey)) or 0
+    local take = math.min(stock, want - leased)
+    if(take > 0) then
+        redis.call('incrby', shardKey, -take)
+        leased = leased + take
+    end
+    if(leased >= want) then
+        return record(leased)
+    end
+end
+
+-- 凑不够说明所有分片都空了
+redis.call('set', soldOutKey, '1')
+return record(leased)
@@ -0,0 +1,34 @@
+---
+--- 收回挂掉的节点手里的租约库存
+--- 租约账本 seckill:lease:{voucherId} 里存活标记 seckill:lease:node:{nodeId} 已经过期的节点，账上的数量全部还回库存
+--- 节点其实没挂、只是卡住了也没关系：它之后每卖一张都要在 seckill_quota.lua 里扣账本，账上没有了就卖不出去
+---
+--- ARGV：voucherId
+--- 返回收回了多少
+---
+local voucherId = ARGV[1]
+local ledgerKey = 'seckill:lease:' .. voucherId
+
+local entries = redis.call('hgetall', ledgerKey)
+local reclaimed = 0
+for i = 1, #entries, 2 do
+    if(redis.call('exists', 'seckill:lease:node:' .. entries[i]) == 0) then
+        reclaimed = reclaimed + (tonumber(entries[i + 1]) or 0)
+        redis.call('hdel', ledgerKey, entries[i])
+    end
+end
+if(redis.call('hlen', ledgerKey) == 0) then
+    redis.call('srem', 'seckill:lease:vouchers', voucherId)
+end
+if(reclaimed <= 0) then
+    return 0
+end
+
+local shards = tonumber(redis.call('hget', 'seckill:voucher:' .. voucherId, 'shards')) or 1
+if(shards <= 1) then
+    redis.call('incrby', 'seckill:stock:' .. voucherId, reclaimed)
+else
+    redis.call('del', 'seckill:soldout:' .. voucherId)
+    redis.call('incrby', 'seckill:stock:{' .. voucherId .. ':0}', reclaimed)
+end
+return reclaimed
@@ -0,0 +1,34 @@
+---
+--- 把本节点没卖完的租约库存还回 Redis
+--- 分片模式下统一还到第 0 片，并清掉售罄标记，让其他节点还能继续卖
+---
+--- ARGV：voucherId, amount, nodeId
+--- 最多只还账本里记着的数量：节点被当成挂了、租约已经被 stock_reclaim.lua 收回去的时候，不能再还一遍
+--- 返回实际还了多少
+---
+local voucherId = ARGV[1]
+local amount = tonumber(ARGV[2])
+local nodeId = ARGV[3]
+
+local stockKey = 'seckill:stock:' .. voucherId
+local metaKey = 'seckill:voucher:' .. voucherId
+local soldOutKey = 'seckill:soldout:' .. voucherId
+local ledgerKey = 'seckill:lease:' .. voucherId
+
+amount = math.min(amount, tonumber(redis.call('hget', ledgerKey, nodeId)) or 0)
+if(amount <= 0) then
+    return 0
+end
+if(redis.call('hincrby', ledgerKey, nodeId, -amount) <= 0) then
+    redis.call('hdel', ledgerKey, nodeId)
+end
+
+local shards = tonumber(redis.call('hget', metaKey, 'shards')) or 1
+if(shards <= 1) then
+    redis.call('incrby', stockKey, amount)
+    return amount
+end
+
+redis.call('del', soldOutKey)
+redis.call('incrby', 'seckill:stock:{' .. voucherId .. ':0}', amount)
+return amount
@@ -0,0 +1,68 @@
+---
+--- 秒杀排队：每个用户领一张号（有序集合里的分数），按每秒 rate 张的速度放号
+--- 返回 0 表示放行，可以去跑 seckill.lua；大于 0 表示还要等多少毫秒再来
+---
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+-- 券上没单独配置 admitRate 时用的默认速率（每秒放行多少张号）
+local defaultRate = tonumber(ARGV[3])
+
+local metaKey = 'seckill:voucher:' .. voucherId
+local queueKey = 'seckill:queue:' .. voucherId
+local seqKey = 'seckill:queue:seq:' .. voucherId
+local stateKey = 'seckill:queue:state:' .. voucherId
+
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'admitRate')
+if(not meta[1]) then
+    -- 没预热的券不排队，交给 seckill.lua 去返回“不存在”
+    return 0
+end
+local beginMillis = tonumber(meta[1])
+local endMillis = tonumber(meta[2])
+local rate = tonumber(meta[3]) or defaultRate
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < beginMillis) then
+    -- 还没开始，等到开始那一刻再来
+    return beginMillis - now
+end
+if(now > endMillis) then
+    return 0
+end
+
+-- 同一个用户重复来问拿到的还是原来那张号，排的位置不变
+local ticket = tonumber(redis.call('zscore', queueKey, userId))
+if(not ticket) then
+    ticket = redis.call('incr', seqKey)
+    redis.call('zadd', queueKey, ticket, userId)
+    if(ticket == 1) then
+        -- 活动结束一小时后这几个 key 自己消失
+        redis.call('pexpireat', seqKey, endMillis + 3600000)
+        redis.call('pexpireat', queueKey, endMillis + 3600000)
+    end
+end
+
+--[[
+放号水位线 watermark：号码小于等于它的都可以进
+每次按流逝的时间涨 elapsed * rate，但最多涨到“已经发出去的号 + rate”，
+闲着的时候不会攒下一大笔额度，突然来一大波人也只能按 rate 一点点放进去
+]]
+local state = redis.call('hmget', stateKey, 'watermark', 'last')
+local watermark = tonumber(state[1])
+local last = tonumber(state[2])
+local issued = tonumber(redis.call('get', seqKey)) or ticket
+if(not watermark) then
+    watermark = rate
+else
+    watermark = math.min(watermark + (now - last) * rate / 1000, issued + rate)
+end
+redis.call('hset', stateKey, 'watermark', tostring(watermark), 'last', tostring(now))
+redis.call('pexpireat', stateKey, endMillis + 3600000)
+
+if(ticket <= watermark) then
+    -- 放行以后把号收回，下次再来（比如没抢到又点了一次）重新排队
+    redis.call('zrem', queueKey, userId)
+    return 0
+end
+return math.ceil((ticket - watermark) * 1000 / rate)
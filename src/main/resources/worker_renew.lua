@@ -0,0 +1,7 @@
+---
+--- 给雪花算法的 workerId 租约续期，和 unlock.lua 一样先确认 key 还是自己的
+---
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0;
@@ -0,0 +1,42 @@
+package com.hmdp.bench;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.data.redis.connection.RedisPassword;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+/*
+压测程序共用的连接创建，不走 Spring 容器
+默认连本机 Redis，可以用 -Dbench.redis.host / -Dbench.redis.port / -Dbench.redis.password 覆盖
+数据库默认连本机 MySQL（和 application.yaml 一样的库），可以用 -Dbench.db.url / -Dbench.db.user / -Dbench.db.password 覆盖
+ */
+public class BenchSupport {
+
+    public static StringRedisTemplate stringRedisTemplate() {
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(
+                System.getProperty("bench.redis.host", "127.0.0.1"),
+                Integer.getInteger("bench.redis.port", 6379));
+        configuration.setPassword(RedisPassword.of(System.getProperty("bench.redis.password")));
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(configuration);
+        factory.afterPropertiesSet();
+        StringRedisTemplate template = new StringRedisTemplate(factory);
+        template.afterPropertiesSet();
+        return template;
+    }
+
+    public static HikariDataSource dataSource(int poolSize) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(System.getProperty("bench.db.url",
+                "jdbc:mysql://127.0.0.1:3306/dpsystem?useSSL=false&serverTimezone=UTC"));
+        config.setUsername(System.getProperty("bench.db.user", "root"));
+        config.setPassword(System.getProperty("bench.db.password", "123456"));
+        config.setMaximumPoolSize(poolSize);
+        return new HikariDataSource(config);
+    }
+
+    public static int intProp(String name, int def) {
+        return Integer.getInteger(name, def);
+    }
+}
@@ -0,0 +1,42 @@
+package com.hmdp.bench;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+
+/*
+RedisIdWorker 每次 INCR 和号段模式的对比压测，需要一个本地 Redis
+  -Dbench.threads=64 -Dbench.ops=500000 -Dbench.segment=1000
+跑完顺便检查生成的 ID 有没有重复
+ */
+public class IdWorkerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = BenchSupport.intProp("bench.threads", 64);
+        int ops = BenchSupport.intProp("bench.ops", 500000);
+        int segment = BenchSupport.intProp("bench.segment", 1000);
+        StringRedisTemplate redis = BenchSupport.stringRedisTemplate();
+
+        System.out.println(run("incr-per-id", new RedisIdWorker(redis, 1), threads, ops));
+        System.out.println(run("segment(" + segment + ")", new RedisIdWorker(redis, segment), threads, ops));
+        System.exit(0);
+    }
+
+    private static LoadRunner.Report run(String name, RedisIdWorker worker, int threads, int ops)
+            throws InterruptedException {
+        long[] ids = new long[ops];
+        LoadRunner.Report report = LoadRunner.run(name, threads, ops, i -> {
+            ids[i] = worker.nextId("bench");
+            return true;
+        });
+        Arrays.sort(ids);
+        for (int i = 1; i < ids.length; i++) {
+            if (ids[i] == ids[i - 1]) {
+                System.out.println("!! " + name + " 生成了重复ID：" + ids[i]);
+                break;
+            }
+        }
+        return report;
+    }
+}
@@ -0,0 +1,105 @@
+package com.hmdp.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+压测用的小工具，不依赖 Spring 容器，直接 main 方法跑
+固定线程数并发执行 totalOps 次任务，记录每次调用的耗时，最后打印吞吐量和 p50/p99
+com.hmdp.bench 下的压测程序都放在 src/test 里，不打进 jar，也不是单元测试（surefire 不会跑），要手动用测试的 classpath 跑：
+  mvn -q test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.hmdp.bench.SeckillScriptBenchmark -Dbench.threads=64
+需要的 Redis/MySQL/应用要自己先起好；仓库里没有记录过任何一次的结果数字，结论以自己环境里跑出来的为准
+ */
+public class LoadRunner {
+
+    public interface Task {
+        // 第 i 次调用，返回 false 表示这次业务上失败了（比如库存不足），只计数不算异常
+        boolean run(int i) throws Exception;
+    }
+
+    public static class Report {
+        public final String name;
+        public final int ops;
+        public final long succeeded;
+        public final long errors;
+        public final double opsPerSec;
+        public final double p50Micros;
+        public final double p99Micros;
+
+        Report(String name, int ops, long succeeded, long errors, double opsPerSec, double p50Micros, double p99Micros) {
+            this.name = name;
+            this.ops = ops;
+            this.succeeded = succeeded;
+            this.errors = errors;
+            this.opsPerSec = opsPerSec;
+            this.p50Micros = p50Micros;
+            this.p99Micros = p99Micros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-28s ops=%-8d ok=%-8d err=%-6d %10.0f ops/s  p50=%8.1fus  p99=%8.1fus",
+                    name, ops, succeeded, errors, opsPerSec, p50Micros, p99Micros);
+        }
+    }
+
+    public static Report run(String name, int threads, int totalOps, Task task) throws InterruptedException {
+        long[] latencies = new long[totalOps];
+        AtomicInteger cursor = new AtomicInteger();
+        LongAdder succeeded = new LongAdder();
+        LongAdder errors = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            pool.submit(() -> {
+                try {
+                    start.await();
+                    int i;
+                    while ((i = cursor.getAndIncrement()) < totalOps) {
+                        long begin = System.nanoTime();
+                        try {
+                            if (task.run(i)) {
+                                succeeded.increment();
+                            }
+                        } catch (Exception e) {
+                            errors.increment();
+                        }
+                        latencies[i] = System.nanoTime() - begin;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.SECONDS);
+
+        Arrays.sort(latencies);
+        return new Report(name, totalOps, succeeded.sum(), errors.sum(),
+                totalOps / (elapsed / 1e9),
+                percentile(latencies, 0.50) / 1e3,
+                percentile(latencies, 0.99) / 1e3);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,107 @@
+package com.hmdp.bench;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+阻塞版 /voucher-order/seckill/{id} 和非阻塞版 /voucher-order/seckill/{id}/async 的 HTTP 对比压测
+要先把应用跑起来，并且把 Tomcat 线程数调小，差别才看得出来，比如：
+  java -jar hmdp.jar --server.tomcat.threads.max=20
+然后：
+  -Dbench.url=http://127.0.0.1:8081 -Dbench.voucher=10 -Dbench.threads=400 -Dbench.ops=40000
+
+压测程序自己往 Redis 里写 bench.ops 个登录 token（login:token:bench-{i}），每个请求用一个不同的用户，
+每轮开始前重置这张券在 Redis 里的库存、时间窗口和买家集合，两轮面对的是完全一样的状态
+券必须是数据库里真实存在的秒杀券，不然消费者落库会失败（不影响请求侧的数据）
+ */
+public class SeckillHttpBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = System.getProperty("bench.url", "http://127.0.0.1:8081");
+        long voucherId = Long.getLong("bench.voucher", 10L);
+        int threads = BenchSupport.intProp("bench.threads", 400);
+        int ops = BenchSupport.intProp("bench.ops", 40000);
+        // 库存默认和请求数一样多，保证两轮都卖不完（原因见 reset）
+        int stock = BenchSupport.intProp("bench.stock", ops);
+        StringRedisTemplate redis = BenchSupport.stringRedisTemplate();
+        // 压测客户端自己也要能同时挂这么多连接
+        System.setProperty("http.maxConnections", String.valueOf(threads));
+
+        createTokens(redis, ops);
+        String path = baseUrl + "/voucher-order/seckill/" + voucherId;
+
+        reset(redis, voucherId, stock);
+        System.out.println(run("blocking", path, threads, ops));
+        reset(redis, voucherId, stock);
+        System.out.println(run("async", path + "/async", threads, ops));
+        System.exit(0);
+    }
+
+    private static LoadRunner.Report run(String name, String url, int threads, int ops) throws InterruptedException {
+        return LoadRunner.run(name, threads, ops, i -> {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("authorization", "bench-" + i);
+            connection.setConnectTimeout(5000);
+            connection.setReadTimeout(30000);
+            int code = connection.getResponseCode();
+            // 读完响应体连接才能被复用
+            String body = readBody(code < 400 ? connection.getInputStream() : connection.getErrorStream());
+            if (code != 200) {
+                throw new IllegalStateException("HTTP " + code);
+            }
+            return body.contains("\"success\":true");
+        });
+    }
+
+    private static String readBody(InputStream in) throws Exception {
+        if (in == null) {
+            return "";
+        }
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[512];
+            int n;
+            while ((n = input.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // 和 UserServiceImpl 登录时写的一样：login:token:{token} 哈希，字段是 UserDTO 的属性
+    private static void createTokens(StringRedisTemplate redis, int users) {
+        for (int i = 0; i < users; i++) {
+            Map<String, String> user = new HashMap<>(4);
+            user.put("id", String.valueOf(1_000_000 + i));
+            user.put("nickName", "bench" + i);
+            user.put("icon", "");
+            redis.opsForHash().putAll(LOGIN_USER_KEY + "bench-" + i, user);
+            redis.expire(LOGIN_USER_KEY + "bench-" + i, LOGIN_USER_TTL, TimeUnit.MINUTES);
+        }
+    }
+
+    private static void reset(StringRedisTemplate redis, long voucherId, int stock) {
+        String id = String.valueOf(voucherId);
+        redis.delete(SECKILL_ORDER_KEY + id);
+        redis.delete(SECKILL_SOLD_OUT_KEY + id);
+        redis.opsForValue().set(SECKILL_STOCK_KEY + id, String.valueOf(stock));
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", "0");
+        meta.put("end", String.valueOf(Long.MAX_VALUE / 2));
+        meta.put("status", "1");
+        meta.put("shards", "1");
+        redis.opsForHash().putAll(SECKILL_VOUCHER_KEY + id, meta);
+        // 应用里的售罄闸门是本地状态，这里清不掉，所以第一轮不能卖完，否则第二轮全被闸门直接拒绝
+    }
+}
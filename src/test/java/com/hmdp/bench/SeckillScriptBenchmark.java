@@ -0,0 +1,149 @@
+package com.hmdp.bench;
+
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillRouter;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+单 key 库存和分片库存下 seckill.lua 的对比压测
+需要一个本地 Redis，参数都用 -D 传：
+  -Dbench.threads=64 -Dbench.ops=200000 -Dbench.stock=100000 -Dbench.shards=8
+stock 比 ops 小时，后半段测的就是售罄以后的拒绝速度
+分片的调用方式和 VoucherOrderServiceImpl 一样：只在用户自己的分片上跑脚本，空了再去兄弟分片拿
+单机 Redis 上测的只是分片路由本身的开销，分片真正分担压力要在 Redis Cluster 上（各分片的 hash tag 落到不同节点）
+ */
+public class SeckillScriptBenchmark {
+
+    private static final DefaultRedisScript<List<Long>> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_TAKE_SCRIPT;
+    private static final DefaultRedisScript<Long> SHARD_UNDO_SCRIPT;
+    static {
+        SECKILL_SCRIPT = RedisScripts.longListScript("seckill.lua");
+        SHARD_TAKE_SCRIPT = new DefaultRedisScript<>();
+        SHARD_TAKE_SCRIPT.setLocation(new ClassPathResource("seckill_shard_take.lua"));
+        SHARD_TAKE_SCRIPT.setResultType(Long.class);
+        SHARD_UNDO_SCRIPT = new DefaultRedisScript<>();
+        SHARD_UNDO_SCRIPT.setLocation(new ClassPathResource("seckill_shard_undo.lua"));
+        SHARD_UNDO_SCRIPT.setResultType(Long.class);
+    }
+    private static final long SHARD_EMPTY = 8;
+
+    public static void main(String[] args) throws Exception {
+        int threads = BenchSupport.intProp("bench.threads", 64);
+        int ops = BenchSupport.intProp("bench.ops", 200000);
+        int stock = BenchSupport.intProp("bench.stock", 100000);
+        int shards = BenchSupport.intProp("bench.shards", 8);
+        StringRedisTemplate redis = BenchSupport.stringRedisTemplate();
+
+        System.out.println(run(redis, "single-key", 990001L, 1, threads, ops, stock));
+        System.out.println(run(redis, "sharded(" + shards + ")", 990002L, shards, threads, ops, stock));
+        System.exit(0);
+    }
+
+    private static LoadRunner.Report run(StringRedisTemplate redis, String name, Long voucherId,
+                                         int shards, int threads, int ops, int stock) throws InterruptedException {
+        reset(redis, voucherId, shards, stock);
+        LoadRunner.Report report = LoadRunner.run(name, threads, ops, i -> {
+            Long userId = (long) i;
+            return shards <= 1 ? buySingle(redis, voucherId, userId) : buySharded(redis, voucherId, userId, shards);
+        });
+
+        // 校验没有超卖：卖出去的数量不能超过库存，剩余库存 + 买家数 = 初始库存
+        long left = 0;
+        long buyers = 0;
+        if (shards <= 1) {
+            left = Long.parseLong(redis.opsForValue().get(SECKILL_STOCK_KEY + voucherId));
+            buyers = redis.opsForSet().size(SECKILL_ORDER_KEY + voucherId);
+        } else {
+            for (int i = 0; i < shards; i++) {
+                left += Long.parseLong(redis.opsForValue().get(SeckillRouter.shardStockKey(voucherId, i)));
+                buyers += redis.opsForSet().size(SeckillRouter.shardOrderKey(voucherId, i));
+            }
+        }
+        if (report.succeeded > stock || left + buyers != stock) {
+            System.out.println("!! 库存对不上 " + name + " sold=" + report.succeeded + " left=" + left + " buyers=" + buyers);
+        }
+        reset(redis, voucherId, shards, -1);
+        return report;
+    }
+
+    private static boolean buySingle(StringRedisTemplate redis, Long voucherId, Long userId) {
+        List<String> keys = new ArrayList<>(Arrays.asList(SECKILL_VOUCHER_KEY + voucherId,
+                SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId));
+        keys.addAll(SeckillRouter.buyerKeys(SECKILL_ORDER_KEY + voucherId, userId));
+        keys.add(SeckillRouter.shopDailyKey("", "bench"));
+        keys.add(ORDER_STATUS_KEY + "bench:" + userId);
+        List<Long> result = redis.execute(SECKILL_SCRIPT, keys,
+                voucherId.toString(), userId.toString(), userId.toString(), "60");
+        return result != null && result.get(0) == 0;
+    }
+
+    private static boolean buySharded(StringRedisTemplate redis, Long voucherId, Long userId, int shards) {
+        int home = SeckillRouter.homeShard(userId, shards);
+        String orderKey = SeckillRouter.shardOrderKey(voucherId, home);
+        List<String> buyerKeys = SeckillRouter.buyerKeys(orderKey, userId);
+        List<String> keys = new ArrayList<>(Arrays.asList(SeckillRouter.shardMetaKey(voucherId, home),
+                SeckillRouter.shardStockKey(voucherId, home), orderKey));
+        keys.addAll(buyerKeys);
+        List<Long> result = redis.execute(SECKILL_SCRIPT, keys,
+                voucherId.toString(), userId.toString(), "", "");
+        long code = result == null ? -1 : result.get(0);
+        if (code != SHARD_EMPTY) {
+            return code == 0;
+        }
+        int start = ThreadLocalRandom.current().nextInt(shards);
+        for (int i = 0; i < shards; i++) {
+            int shard = (start + i) % shards;
+            if (shard != home && Long.valueOf(1L).equals(redis.execute(SHARD_TAKE_SCRIPT,
+                    Collections.singletonList(SeckillRouter.shardStockKey(voucherId, shard))))) {
+                return true;
+            }
+        }
+        redis.execute(SHARD_UNDO_SCRIPT,
+                Arrays.asList(SeckillRouter.shardMetaKey(voucherId, home), orderKey, buyerKeys.get(0), buyerKeys.get(1)),
+                userId.toString());
+        return false;
+    }
+
+    // stock < 0 只清理
+    private static void reset(StringRedisTemplate redis, Long voucherId, int shards, int stock) {
+        redis.delete(redis.keys(ORDER_STATUS_KEY + "bench:*"));
+        redis.delete(Arrays.asList(SECKILL_STOCK_KEY + voucherId, SECKILL_ORDER_KEY + voucherId,
+                SECKILL_VOUCHER_KEY + voucherId, SECKILL_SOLD_OUT_KEY + voucherId));
+        for (int i = 0; i < shards; i++) {
+            redis.delete(Arrays.asList(SeckillRouter.shardStockKey(voucherId, i),
+                    SeckillRouter.shardOrderKey(voucherId, i), SeckillRouter.shardMetaKey(voucherId, i)));
+        }
+        if (stock < 0) {
+            return;
+        }
+        // 模拟预热：时间窗口放到最大，上架状态
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", "0");
+        meta.put("end", String.valueOf(Long.MAX_VALUE / 2));
+        meta.put("status", "1");
+        meta.put("shards", String.valueOf(shards));
+        redis.opsForHash().putAll(SECKILL_VOUCHER_KEY + voucherId, meta);
+        if (shards <= 1) {
+            redis.opsForValue().set(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            redis.opsForHash().putAll(SeckillRouter.shardMetaKey(voucherId, i), meta);
+            redis.opsForValue().set(SeckillRouter.shardStockKey(voucherId, i),
+                    String.valueOf(stock / shards + (i < stock % shards ? 1 : 0)));
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.hmdp.bench;
+
+import com.hmdp.utils.CoalescingLockFactory;
+import com.hmdp.utils.ILock;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillRouter;
+import com.hmdp.utils.SimpleRedisLock;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/*
+三种秒杀下单方式的对比压测：
+  sync          同步下单：SimpleRedisLock 按用户加锁 + 查库存 + count 一人一单 + 扣库存 + 插订单，全在请求线程里做完
+  sync-coalescing 同上，锁换成 CoalescingLockFactory（本节点先挡一道，同一用户的并发请求只有一个去 Redis）
+  lua-mq        seckill.lua 扣 Redis 库存，订单交给消息队列，consumers 个消费者并发落库（INSERT IGNORE + 扣库存，同 createVoucherOrder）
+  blocking-queue 以前注释掉的方案：seckill.lua 之后放进 ArrayBlockingQueue，一个后台线程逐条落库
+
+需要本地 Redis 和 MySQL（连接参数见 BenchSupport），消息队列用进程内的队列代替 RabbitMQ，
+所以 lua-mq 测到的是下单链路本身，不包含 broker 的网络开销
+数据写在 bench_seckill_voucher / bench_voucher_order 两张表里，每轮开始前清空，不碰业务表
+订单表故意不加 (user_id, voucher_id) 唯一索引，这样策略本身没挡住的重复订单能统计出来
+
+  -Dbench.threads=64 -Dbench.ops=20000 -Dbench.users=10000 -Dbench.stock=5000 -Dbench.consumers=4
+
+每轮打印两行：请求侧（LoadRunner 的吞吐和 p50/p99），以及落库侧（全部订单写完用了多久、端到端每秒订单数、超卖和重复的数量）
+ */
+public class SeckillStrategyBenchmark {
+
+    private static final Long VOUCHER_ID = 990101L;
+    private static final DefaultRedisScript<List<Long>> SECKILL_SCRIPT;
+    static {
+        SECKILL_SCRIPT = RedisScripts.longListScript("seckill.lua");
+    }
+
+    private final StringRedisTemplate redis;
+    private final DataSource dataSource;
+    private final int threads;
+    private final int ops;
+    private final int users;
+    private final int stock;
+    private final int consumers;
+    private final AtomicLong orderIds = new AtomicLong();
+
+    private SeckillStrategyBenchmark(StringRedisTemplate redis, DataSource dataSource,
+                                     int threads, int ops, int users, int stock, int consumers) {
+        this.redis = redis;
+        this.dataSource = dataSource;
+        this.threads = threads;
+        this.ops = ops;
+        this.users = users;
+        this.stock = stock;
+        this.consumers = consumers;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = BenchSupport.intProp("bench.threads", 64);
+        int ops = BenchSupport.intProp("bench.ops", 20000);
+        // 用户数比请求数少，同一个用户会来好几次，用来测一人一单
+        int users = BenchSupport.intProp("bench.users", ops / 2);
+        int stock = BenchSupport.intProp("bench.stock", 5000);
+        int consumers = BenchSupport.intProp("bench.consumers", 4);
+
+        SeckillStrategyBenchmark bench = new SeckillStrategyBenchmark(BenchSupport.stringRedisTemplate(),
+                BenchSupport.dataSource(Math.max(threads, consumers) + 2), threads, ops, users, stock, consumers);
+        bench.createTables();
+        bench.runSync("sync", name -> new SimpleRedisLock(bench.redis, name));
+        CoalescingLockFactory lockFactory = new CoalescingLockFactory(name -> new SimpleRedisLock(bench.redis, name));
+        bench.runSync("sync-coalescing", lockFactory::getLock);
+        bench.runLuaMq();
+        bench.runBlockingQueue();
+        System.exit(0);
+    }
+
+    // ---------------- 三种策略 ----------------
+
+    private void runSync(String name, Function<String, ILock> locks) throws Exception {
+        reset();
+        long begin = System.nanoTime();
+        LoadRunner.Report report = LoadRunner.run(name, threads, ops, i -> {
+            long userId = randomUser();
+            // 同 synSeckillVoucher：先查一次券看库存
+            if (queryStock() < 1) {
+                return false;
+            }
+            ILock lock = locks.apply("order:" + userId);
+            if (!lock.tryLock(1000L)) {
+                return false;
+            }
+            try {
+                return persistWithCount(new long[]{orderIds.incrementAndGet(), userId});
+            } finally {
+                lock.unlock();
+            }
+        });
+        printResult(report, System.nanoTime() - begin);
+    }
+
+    private void runLuaMq() throws Exception {
+        reset();
+        BlockingQueue<long[]> broker = new LinkedBlockingQueue<>();
+        runAsync("lua-mq", broker, consumers);
+    }
+
+    private void runBlockingQueue() throws Exception {
+        reset();
+        BlockingQueue<long[]> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+        runAsync("blocking-queue", orderTasks, 1);
+    }
+
+    /*
+    两种异步方案的区别只在队列和消费者数量上，请求侧完全一样：跑 seckill.lua，成功了把订单放进队列就返回
+    请求全部结束后等队列消费完，用“最后一单落库”的时间算端到端吞吐
+     */
+    private void runAsync(String name, BlockingQueue<long[]> queue, int consumerCount) throws Exception {
+        // 受理了多少单、消费者处理完了多少单，请求结束后等两边对上
+        AtomicLong accepted = new AtomicLong();
+        AtomicLong processed = new AtomicLong();
+        List<Thread> workers = new ArrayList<>(consumerCount);
+        for (int c = 0; c < consumerCount; c++) {
+            Thread worker = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        long[] order = queue.take();
+                        try {
+                            persistIgnore(order);
+                        } catch (SQLException e) {
+                            System.out.println("!! 落库失败：" + e.getMessage());
+                        }
+                        processed.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, name + "-consumer-" + c);
+            worker.start();
+            workers.add(worker);
+        }
+
+        String id = VOUCHER_ID.toString();
+        long begin = System.nanoTime();
+        LoadRunner.Report report = LoadRunner.run(name, threads, ops, i -> {
+            long userId = randomUser();
+            long orderId = orderIds.incrementAndGet();
+            List<String> keys = new ArrayList<>(Arrays.asList(SECKILL_VOUCHER_KEY + id, SECKILL_STOCK_KEY + id,
+                    SECKILL_ORDER_KEY + id));
+            keys.addAll(SeckillRouter.buyerKeys(SECKILL_ORDER_KEY + id, userId));
+            keys.add(SECKILL_SHOP_DAILY_KEY + "bench");
+            keys.add(ORDER_STATUS_KEY + orderId);
+            List<Long> result = redis.execute(SECKILL_SCRIPT, keys,
+                    id, String.valueOf(userId), String.valueOf(orderId), "60");
+            if (result == null || result.get(0) != 0) {
+                return false;
+            }
+            accepted.incrementAndGet();
+            queue.put(new long[]{orderId, userId});
+            return true;
+        });
+
+        while (processed.get() < accepted.get()) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        long elapsed = System.nanoTime() - begin;
+        workers.forEach(Thread::interrupt);
+        printResult(report, elapsed);
+    }
+
+    // ---------------- 落库，SQL 和 VoucherOrderServiceImpl 里保持一致 ----------------
+
+    // 同步方案的老写法：count 判断一人一单，再扣库存、插订单
+    private boolean persistWithCount(long[] order) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = connection.prepareStatement(
+                        "SELECT COUNT(*) FROM bench_voucher_order WHERE user_id = ? AND voucher_id = ?")) {
+                    ps.setLong(1, order[1]);
+                    ps.setLong(2, VOUCHER_ID);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        if (rs.getLong(1) > 0) {
+                            connection.rollback();
+                            return false;
+                        }
+                    }
+                }
+                if (!decrementStock(connection)) {
+                    connection.rollback();
+                    return false;
+                }
+                insertOrder(connection, "INSERT INTO", order);
+                connection.commit();
+                return true;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    // 现在的写法：INSERT IGNORE 先占位，再扣库存，扣不动就回滚
+    private boolean persistIgnore(long[] order) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                if (insertOrder(connection, "INSERT IGNORE INTO", order) == 0 || !decrementStock(connection)) {
+                    connection.rollback();
+                    return false;
+                }
+                connection.commit();
+                return true;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private int insertOrder(Connection connection, String insert, long[] order) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                insert + " bench_voucher_order (id, user_id, voucher_id) VALUES (?, ?, ?)")) {
+            ps.setLong(1, order[0]);
+            ps.setLong(2, order[1]);
+            ps.setLong(3, VOUCHER_ID);
+            return ps.executeUpdate();
+        }
+    }
+
+    private boolean decrementStock(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(
+                "UPDATE bench_seckill_voucher SET stock = stock - 1 WHERE voucher_id = ? AND stock > 0")) {
+            ps.setLong(1, VOUCHER_ID);
+            return ps.executeUpdate() > 0;
+        }
+    }
+
+    private long queryStock() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement ps = connection.prepareStatement(
+                     "SELECT stock FROM bench_seckill_voucher WHERE voucher_id = ?")) {
+            ps.setLong(1, VOUCHER_ID);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    // ---------------- 准备数据和统计 ----------------
+
+    private long randomUser() {
+        return 1 + ThreadLocalRandom.current().nextInt(users);
+    }
+
+    private void createTables() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement()) {
+            st.execute("CREATE TABLE IF NOT EXISTS bench_seckill_voucher (" +
+                    "voucher_id BIGINT PRIMARY KEY, stock INT NOT NULL) ENGINE = InnoDB");
+            st.execute("CREATE TABLE IF NOT EXISTS bench_voucher_order (" +
+                    "id BIGINT PRIMARY KEY, user_id BIGINT NOT NULL, voucher_id BIGINT NOT NULL, " +
+                    "KEY idx_user_voucher (user_id, voucher_id)) ENGINE = InnoDB");
+        }
+    }
+
+    private void reset() throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement()) {
+            st.execute("TRUNCATE TABLE bench_voucher_order");
+            st.execute("REPLACE INTO bench_seckill_voucher (voucher_id, stock) VALUES (" + VOUCHER_ID + ", " + stock + ")");
+        }
+        // 模拟预热，和 SeckillScriptBenchmark 一样时间窗口放到最大
+        String id = VOUCHER_ID.toString();
+        redis.delete(SECKILL_ORDER_KEY + id);
+        redis.delete(SECKILL_SOLD_OUT_KEY + id);
+        redis.opsForValue().set(SECKILL_STOCK_KEY + id, String.valueOf(stock));
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", "0");
+        meta.put("end", String.valueOf(Long.MAX_VALUE / 2));
+        meta.put("status", "1");
+        meta.put("shards", "1");
+        redis.opsForHash().putAll(SECKILL_VOUCHER_KEY + id, meta);
+    }
+
+    private void printResult(LoadRunner.Report report, long elapsedNanos) throws SQLException {
+        long orders;
+        long distinctUsers;
+        long left;
+        try (Connection connection = dataSource.getConnection(); Statement st = connection.createStatement()) {
+            try (ResultSet rs = st.executeQuery(
+                    "SELECT COUNT(*), COUNT(DISTINCT user_id) FROM bench_voucher_order WHERE voucher_id = " + VOUCHER_ID)) {
+                rs.next();
+                orders = rs.getLong(1);
+                distinctUsers = rs.getLong(2);
+            }
+            try (ResultSet rs = st.executeQuery(
+                    "SELECT stock FROM bench_seckill_voucher WHERE voucher_id = " + VOUCHER_ID)) {
+                rs.next();
+                left = rs.getLong(1);
+            }
+        }
+        System.out.println(report);
+        System.out.println(String.format("%-28s orders=%-8d drain=%8.0fms %10.0f orders/s  oversell=%d  duplicate=%d  stockLeft=%d",
+                "", orders, elapsedNanos / 1e6, orders / (elapsedNanos / 1e9),
+                Math.max(0, orders - stock), orders - distinctUsers, left));
+    }
+}
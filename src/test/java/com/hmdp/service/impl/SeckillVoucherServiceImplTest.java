@@ -0,0 +1,59 @@
+package com.hmdp.service.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/*
+压缩出来的布隆过滤器是 Java 写的，下单时是 seckill.lua 查的，两边算出来的位置差一位，买过的人就能再买一次
+下面的向量是用 sha1(userId) 按 seckill.lua 的算法单独算出来的（前 8 位、9~16 位十六进制各当一个 32 位整数，
+第 i 个位置是 (h1 + i * h2) % bloomBits），两边都要对得上
+ */
+class SeckillVoucherServiceImplTest {
+
+    @Test
+    void bloomPositionsMatchKnownVectors() {
+        // sha1("1") = 356a192b 7913b04c ...
+        assertArrayEquals(new long[]{707, 159, 611},
+                SeckillVoucherServiceImpl.bloomPositions(1L, 1000L, 3));
+        // sha1("1010") = 1966e694 bad90686 ...
+        assertArrayEquals(new long[]{452244, 1043738, 586656, 129574, 721068},
+                SeckillVoucherServiceImpl.bloomPositions(1010L, 1048576L, 5));
+        // sha1("123456789") = f7c3bc1d 808e0473 ...
+        assertArrayEquals(new long[]{6469482, 6622106, 6774730, 6927354, 7079978, 7232602, 7385226},
+                SeckillVoucherServiceImpl.bloomPositions(123456789L, 9585059L, 7));
+    }
+
+    @Test
+    void bloomPositionsMatchLuaArithmetic() throws NoSuchAlgorithmException {
+        long[] sizes = {1000L, 1048576L, 9585059L, 123456791L};
+        for (long userId = 1; userId <= 2000; userId++) {
+            for (long bloomBits : sizes) {
+                assertArrayEquals(luaPositions(userId, bloomBits, 7),
+                        SeckillVoucherServiceImpl.bloomPositions(userId, bloomBits, 7), "userId=" + userId);
+            }
+        }
+    }
+
+    // 照着 seckill.lua 算：Redis 里的 Lua 5.1 数字都是 double，a % b 就是 a - floor(a / b) * b
+    private static long[] luaPositions(long userId, long bloomBits, int bloomHashes) throws NoSuchAlgorithmException {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(String.valueOf(userId).getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02x", b));
+        }
+        double h1 = Long.parseLong(hex.substring(0, 8), 16);
+        double h2 = Long.parseLong(hex.substring(8, 16), 16);
+        double bits = bloomBits;
+        long[] positions = new long[bloomHashes];
+        for (int i = 0; i < bloomHashes; i++) {
+            double a = h1 + i * h2;
+            positions[i] = (long) (a - Math.floor(a / bits) * bits);
+        }
+        return positions;
+    }
+}